@@ -0,0 +1,288 @@
+package com.corunet.groovy.limiter;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits guarded script executions so that the summed expected allocation of the running ones stays inside a node
+ * budget.
+ *
+ * The expected allocation of a script is learned from the {@link MemoryQuotaCheck} of its past runs, keyed by a
+ * script identity chosen by the caller (a name, a hash of the source...). It follows increases of the measured maximum
+ * immediately and decreases slowly, so a single light run doesn't let a heavy script overlap others again. The
+ * average measured by each run is smoothed across runs too, and a lower maximum only pulls the estimate down as far as
+ * that smoothed average: a script that usually allocates a lot keeps most of its estimate after a run that ended early.
+ * Scripts never seen before are expected to allocate a configurable default.
+ *
+ * Executions that don't fit wait in arrival order. Estimates are capped at the whole budget, so a script that once
+ * allocated more than the budget still runs, alone, and its estimate can come down on later runs.
+ */
+public class AdmissionScheduler {
+
+    /* Fraction of the distance to a lower value an estimate, or a smoothed average, moves on each run */
+    private static final int DECAY_DIVISOR = 4;
+
+    /* Memory budget for all running scripts */
+    private final long budget;
+    /* Estimate for scripts without history */
+    private final long defaultEstimate;
+    /* Learned estimates by script identity */
+    private final Map<String, Estimate> estimates = new HashMap<>();
+    /* Waiting executions, in arrival order */
+    private final ArrayDeque<Admission> queue = new ArrayDeque<>();
+    /* Summed estimate of admitted executions */
+    private long reserved = 0L;
+    /* Admitted executions not yet released */
+    private int running = 0;
+    /* Stats */
+    private long admitted = 0L;
+    private long rejected = 0L;
+    private long missed = 0L;
+
+    /**
+     * Creates a scheduler for the given node budget
+     *
+     * @param budget summed expected allocation allowed for running scripts in bytes
+     * @param defaultEstimate expected allocation of scripts without history in bytes
+     * @throws IllegalArgumentException when any value is not positive or the default doesn't fit in the budget
+     */
+    public AdmissionScheduler(long budget, long defaultEstimate) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Admission budget should be a positive number but it was " + budget);
+        }
+        if (defaultEstimate < 0 || defaultEstimate > budget) {
+            throw new IllegalArgumentException(
+                "Default estimate should be between 0 and the budget but it was " + defaultEstimate);
+        }
+        this.budget = budget;
+        this.defaultEstimate = defaultEstimate;
+    }
+
+    /**
+     * Admits an execution of the given script, waiting up to the given time for enough budget to be released.
+     *
+     * @param scriptId identity of the script, used to learn its expected allocation
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return the admission, which must be released once the execution finishes
+     * @throws RejectedExecutionException when the timeout elapses
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized Admission admit(String scriptId, long timeout, TimeUnit unit) throws InterruptedException {
+        final Admission admission = new Admission(scriptId, getEstimate(scriptId));
+        queue.addLast(admission);
+        try {
+            long remaining = unit.toNanos(timeout);
+            while (queue.peekFirst() != admission || !fits(admission.estimate)) {
+                if (remaining <= 0L) {
+                    rejected += 1;
+                    throw new RejectedExecutionException("Timed out waiting for admission of script " + scriptId);
+                }
+                final long deadline = System.nanoTime() + remaining;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        } finally {
+            if (queue.remove(admission)) {
+                // The head of the queue changed, the next waiter may fit now
+                notifyAll();
+            }
+        }
+
+        reserved += admission.estimate;
+        running += 1;
+        admitted += 1;
+        return admission;
+    }
+
+    /**
+     * Admits an execution of the given script only if it can run right now. Returning null is counted as a miss,
+     * not as a rejection, as the same script may be admitted a moment later.
+     *
+     * @param scriptId identity of the script, used to learn its expected allocation
+     * @return the admission, which must be released once the execution finishes, or null if it doesn't fit now
+     */
+    public synchronized Admission tryAdmit(String scriptId) {
+        final long estimate = getEstimate(scriptId);
+        if (!queue.isEmpty() || !fits(estimate)) {
+            missed += 1;
+            return null;
+        }
+        reserved += estimate;
+        running += 1;
+        admitted += 1;
+        return new Admission(scriptId, estimate);
+    }
+
+    /**
+     * An otherwise idle node always admits one execution, so the estimate of a lone script can be refreshed
+     */
+    private boolean fits(long estimate) {
+        return running == 0 || reserved + estimate <= budget;
+    }
+
+    private synchronized void release(Admission admission, MemoryQuotaCheck memoryQuotaCheck) {
+        if (admission.released) {
+            return;
+        }
+        admission.released = true;
+        reserved -= admission.estimate;
+        running -= 1;
+        if (memoryQuotaCheck != null && memoryQuotaCheck.getChecks() > 0) {
+            learn(admission.scriptId, memoryQuotaCheck.getMaximum(), memoryQuotaCheck.getAverage());
+        }
+        notifyAll();
+    }
+
+    private void learn(String scriptId, long maximum, long average) {
+        Estimate estimate = estimates.get(scriptId);
+        if (estimate == null) {
+            estimate = new Estimate(maximum, average);
+            estimates.put(scriptId, estimate);
+        } else {
+            estimate.average += (average - estimate.average) / DECAY_DIVISOR;
+            if (maximum >= estimate.peak) {
+                estimate.peak = maximum;
+            } else {
+                final long target = Math.max(maximum, estimate.average);
+                if (target < estimate.peak) {
+                    estimate.peak -= (estimate.peak - target) / DECAY_DIVISOR;
+                }
+            }
+        }
+        // a script over the whole budget can only run alone, which a budget-sized estimate already ensures
+        estimate.peak = Math.min(estimate.peak, budget);
+    }
+
+    /**
+     * @param scriptId identity of the script
+     * @return the expected allocation of the next execution of the script in bytes
+     */
+    public synchronized long getEstimate(String scriptId) {
+        final Estimate estimate = estimates.get(scriptId);
+        return estimate != null ? estimate.peak : defaultEstimate;
+    }
+
+    /**
+     * Forgets the learned estimate of a script, for example after it has been modified
+     *
+     * @param scriptId identity of the script
+     */
+    public synchronized void forget(String scriptId) {
+        estimates.remove(scriptId);
+    }
+
+    /**
+     * @return the memory budget for all running scripts in bytes
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the summed expected allocation of the running scripts in bytes
+     */
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * @return the count of admitted executions not yet released
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * @return the count of executions waiting for admission
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return the count of executions admitted by this scheduler
+     */
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * @return the count of executions rejected by {@link #admit} after waiting for their timeout
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the count of {@link #tryAdmit} calls that found no room
+     */
+    public synchronized long getMissed() {
+        return missed;
+    }
+
+    /**
+     * Learned allocation of a script
+     */
+    private static final class Estimate {
+
+        /* Expected peak, the estimate reserved on admission */
+        private long peak;
+        /* Average of the runs' averages, smoothed */
+        private long average;
+
+        private Estimate(long peak, long average) {
+            this.peak = peak;
+            this.average = average;
+        }
+    }
+
+    /**
+     * An admitted script execution. Releasing it returns its estimate to the budget.
+     */
+    public final class Admission {
+
+        private final String scriptId;
+        private final long estimate;
+        private boolean released = false;
+
+        private Admission(String scriptId, long estimate) {
+            this.scriptId = scriptId;
+            this.estimate = estimate;
+        }
+
+        /**
+         * @return identity of the admitted script
+         */
+        public String getScriptId() {
+            return scriptId;
+        }
+
+        /**
+         * @return the expected allocation reserved for this execution in bytes
+         */
+        public long getEstimate() {
+            return estimate;
+        }
+
+        /**
+         * Releases this admission and learns the script's allocation from the checker used to run it. Further calls
+         * have no effect.
+         *
+         * @param memoryQuotaCheck the checker of the finished execution, or null if it's not available
+         */
+        public void release(MemoryQuotaCheck memoryQuotaCheck) {
+            AdmissionScheduler.this.release(this, memoryQuotaCheck);
+        }
+
+        /**
+         * Releases this admission without learning anything from the execution. Further calls have no effect.
+         */
+        public void release() {
+            release(null);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.corunet.groovy.limiter;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Fixed capacity recorder of (nanoTime, allocatedBytes) samples taken by a {@link MemoryQuotaCheck}.
+ *
+ * Samples are stored in two preallocated primitive arrays so that recording never allocates. When the buffer fills
+ * up, every other sample is discarded and only one out of every two following samples is kept, so the timeline
+ * always covers the whole run at a progressively coarser resolution, with samples evenly spaced in check counts. The
+ * first and latest samples are always kept, one slot of the capacity is reserved for the latest one.
+ */
+public class AllocationTimeline {
+
+    /* Binary dump format marker */
+    public static final int MAGIC = 0x474D4C54;
+    /* Smallest capacity holding two evenly spaced samples plus the latest one */
+    private static final int MIN_CAPACITY = 3;
+
+    private final int capacity;
+    /* Sample timestamps as reported by System.nanoTime() */
+    private final long[] times;
+    /* Allocated bytes measured on each sample */
+    private final long[] bytes;
+    /* Number of samples stored */
+    private int size = 0;
+    /* Only one out of this many samples is stored */
+    private long stride = 1L;
+    /* Samples offered since the last stored one */
+    private long skipped = 0L;
+    /* Total samples offered to this timeline */
+    private long recorded = 0L;
+    /* Latest sample, kept even if skipped by the stride */
+    private long lastTime;
+    private long lastBytes;
+
+    /**
+     * Creates a timeline able to hold up to the given number of samples
+     *
+     * @param capacity maximum number of samples kept including the latest one, at least 3. Even capacities leave
+     * one slot unused, as halving keeps samples evenly spaced only when an even number of them is stored.
+     * @throws IllegalArgumentException when capacity is lower than 3
+     */
+    public AllocationTimeline(int capacity) {
+        if (capacity < MIN_CAPACITY) {
+            throw new IllegalArgumentException(
+                "Timeline capacity should be at least " + MIN_CAPACITY + " but it was " + capacity);
+        }
+        this.capacity = capacity;
+        // an even number of slots for the strided samples, the latest sample may take the remaining one
+        final int slots = (capacity - 1) & ~1;
+        this.times = new long[slots];
+        this.bytes = new long[slots];
+    }
+
+    /**
+     * Records a sample. Never allocates.
+     *
+     * @param nanoTime timestamp as returned by {@link System#nanoTime()}
+     * @param allocatedBytes memory allocated at that moment in bytes
+     */
+    public void record(long nanoTime, long allocatedBytes) {
+        recorded += 1;
+        lastTime = nanoTime;
+        lastBytes = allocatedBytes;
+        if (size > 0 && ++skipped < stride) {
+            return;
+        }
+        skipped = 0L;
+        if (size == times.length) {
+            downsample();
+        }
+        times[size] = nanoTime;
+        bytes[size] = allocatedBytes;
+        size += 1;
+    }
+
+    /**
+     * Halves the stored samples keeping the even positions and doubles the stride for upcoming ones
+     */
+    private void downsample() {
+        int kept = 0;
+        for (int i = 0; i < size; i += 2) {
+            times[kept] = times[i];
+            bytes[kept] = bytes[i];
+            kept += 1;
+        }
+        size = kept;
+        stride *= 2;
+    }
+
+    /**
+     * @return the capacity of this timeline
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of samples currently stored, including the latest one, never over the capacity
+     */
+    public int size() {
+        return hasPendingLast() ? size + 1 : size;
+    }
+
+    /**
+     * @return the count of samples offered to this timeline, stored or not
+     */
+    public long getRecorded() {
+        return recorded;
+    }
+
+    /**
+     * @return one out of how many samples is currently being stored
+     */
+    public long getStride() {
+        return stride;
+    }
+
+    /**
+     * @param index sample position, from 0 to {@link #size()} - 1
+     * @return the sample timestamp in nanoseconds
+     */
+    public long getTime(int index) {
+        return index == size && hasPendingLast() ? lastTime : times[checkIndex(index)];
+    }
+
+    /**
+     * @param index sample position, from 0 to {@link #size()} - 1
+     * @return the allocated bytes on that sample
+     */
+    public long getBytes(int index) {
+        return index == size && hasPendingLast() ? lastBytes : bytes[checkIndex(index)];
+    }
+
+    /**
+     * Discards every sample so this timeline can be reused
+     */
+    public void clear() {
+        size = 0;
+        stride = 1L;
+        skipped = 0L;
+        recorded = 0L;
+    }
+
+    /**
+     * Writes this timeline as CSV with a header row. Times are relative to the first sample.
+     *
+     * @param out where the CSV will be appended
+     * @throws IOException if the destination fails
+     */
+    public void writeCsv(Appendable out) throws IOException {
+        out.append("nanos,bytes\n");
+        final int count = size();
+        final long start = count > 0 ? getTime(0) : 0L;
+        for (int i = 0; i < count; i++) {
+            out.append(Long.toString(getTime(i) - start)).append(',').append(Long.toString(getBytes(i))).append('\n');
+        }
+    }
+
+    /**
+     * Writes this timeline in a compact binary form: {@link #MAGIC}, sample count as an int, first timestamp as a
+     * long and then, for each sample, the deltas of its time and allocated bytes from the previous sample (from the
+     * first timestamp and zero for the first one). Deltas are zigzag encoded variable length longs: seven bits per
+     * byte, least significant group first, with the high bit set on every byte but the last.
+     *
+     * @param out where the timeline will be written
+     * @throws IOException if the destination fails
+     */
+    public void writeBinary(DataOutput out) throws IOException {
+        final int count = size();
+        out.writeInt(MAGIC);
+        out.writeInt(count);
+        long previousTime = count > 0 ? getTime(0) : 0L;
+        long previousBytes = 0L;
+        out.writeLong(previousTime);
+        for (int i = 0; i < count; i++) {
+            writeVarLong(out, getTime(i) - previousTime);
+            writeVarLong(out, getBytes(i) - previousBytes);
+            previousTime = getTime(i);
+            previousBytes = getBytes(i);
+        }
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0L) {
+            out.writeByte((int) ((zigzag & 0x7FL) | 0x80L));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    /**
+     * The latest sample may have been skipped by the stride, it is reported anyway as the run's final point
+     */
+    private boolean hasPendingLast() {
+        return size > 0 && skipped > 0L;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Sample " + index + " out of " + size());
+        }
+        return index;
+    }
+}
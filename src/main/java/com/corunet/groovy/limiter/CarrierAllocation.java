@@ -0,0 +1,273 @@
+package com.corunet.groovy.limiter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Allocation accounting for a script running on a virtual thread, whose allocated bytes are not reported by
+ * {@link ThreadMXBean}.
+ *
+ * The script is charged what its carrier threads allocate while it's mounted on them. Each mount is observed by
+ * wrapping the task the virtual thread scheduler runs to mount the thread, which reads the allocated bytes of the
+ * carrier when the thread is mounted and when it's unmounted again. Check points read them in between, so the script
+ * is charged its current mount up to the check. What other virtual threads allocate on the same carriers while the
+ * script is parked is never charged.
+ *
+ * A mount that wasn't observed, like the one running when the accounting starts, is only charged from the first check
+ * point on it, and what it allocates after its last check point is unknown: such windows are not charged, and are
+ * counted by {@link #getLostWindows()}.
+ *
+ * The carrier thread and the mount task are only reachable when the java.lang package is open to the limiter, for
+ * example with {@code --add-opens java.base/java.lang=ALL-UNNAMED}. The virtual thread API is looked up reflectively,
+ * so the limiter still runs on Java 8.
+ */
+final class CarrierAllocation {
+
+    /* Thread.isVirtual(), null before Java 21 */
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+    /* Thread.currentCarrierThread(), null if missing or not accessible */
+    private static final MethodHandle CURRENT_CARRIER = findCurrentCarrier();
+    /* VirtualThread.runContinuation, the task mounting a virtual thread, null if missing or not accessible */
+    private static final Field MOUNT_TASK = findMountTask();
+
+    private final ThreadMXBean threadMXBean;
+    private final Supplier<Thread> carriers;
+    /* Virtual thread whose mount task is observed, null if none */
+    private final Thread thread;
+    private final Observer observer;
+    /* Latest mount of the script, set on the carrier before mounting */
+    private volatile Mount mount;
+    /* Mount seen on the previous check point */
+    private Mount checked;
+    /* Bytes charged by check points */
+    private long allocated = 0L;
+    /* Bytes charged on unmounts, after the last check point of each mount */
+    private final AtomicLong unmounted = new AtomicLong();
+    /* Windows of unobserved mounts that couldn't be charged */
+    private long lostWindows = 0L;
+
+    /**
+     * Starts observing the mounts of the current virtual thread
+     *
+     * @param threadMXBean used to read the allocated bytes of carrier threads
+     */
+    CarrierAllocation(ThreadMXBean threadMXBean) {
+        this(threadMXBean, CarrierAllocation::currentCarrier, Thread.currentThread());
+    }
+
+    /**
+     * @param threadMXBean used to read the allocated bytes of carrier threads
+     * @param carriers tells the carrier of the current thread
+     */
+    CarrierAllocation(ThreadMXBean threadMXBean, Supplier<Thread> carriers) {
+        this(threadMXBean, carriers, null);
+    }
+
+    private CarrierAllocation(ThreadMXBean threadMXBean, Supplier<Thread> carriers, Thread thread) {
+        this.threadMXBean = threadMXBean;
+        this.carriers = carriers;
+        this.thread = thread;
+        this.observer = thread != null ? new Observer(getMountTask(thread)) : null;
+        this.mount = new Mount(carriers.get(), false);
+        if (observer != null) {
+            setMountTask(thread, observer);
+        }
+    }
+
+    /**
+     * @param thread any thread
+     * @return true if it's a virtual thread
+     */
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @return true if the carrier and the mounts of virtual threads are accessible
+     */
+    static boolean isSupported() {
+        return CURRENT_CARRIER != null && MOUNT_TASK != null;
+    }
+
+    /**
+     * Charges the carrier allocation of the current mount since the previous check point. Must be called from the
+     * script thread.
+     *
+     * @return bytes charged to the script so far
+     */
+    long allocatedBytes() {
+        Mount current = mount;
+        final Thread carrier = carriers.get();
+        if (current.carrier != carrier) {
+            // mounted without going through the observer
+            current = new Mount(carrier, false);
+            mount = current;
+        }
+        if (current != checked) {
+            if (checked != null && !checked.observed) {
+                // its allocation after the last check point is unknown
+                lostWindows += 1;
+            }
+            checked = current;
+        }
+        final long carrierAllocated = allocatedBy(carrier);
+        if (carrierAllocated > current.charged) {
+            allocated += carrierAllocated - current.charged;
+            current.charged = carrierAllocated;
+        }
+        return allocated + unmounted.get();
+    }
+
+    /**
+     * Stops observing the mounts of the virtual thread. What it allocates from then on is only charged on the current
+     * mount.
+     */
+    void close() {
+        if (observer == null || !observer.active) {
+            return;
+        }
+        observer.active = false;
+        if (getMountTask(thread) == observer) {
+            setMountTask(thread, observer.mountTask);
+        }
+    }
+
+    /**
+     * @param mountTask a task mounting the script thread
+     * @return the task observing its mounts
+     */
+    Runnable observe(Runnable mountTask) {
+        return new Observer(mountTask);
+    }
+
+    /**
+     * @return count of check point windows not charged because the mount they ended in was not observed
+     */
+    long getLostWindows() {
+        return lostWindows;
+    }
+
+    private long allocatedBy(Thread carrier) {
+        return threadMXBean.getThreadAllocatedBytes(carrier.getId());
+    }
+
+    private static Thread currentCarrier() {
+        try {
+            return (Thread) CURRENT_CARRIER.invokeExact();
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Runnable getMountTask(Thread thread) {
+        try {
+            return (Runnable) MOUNT_TASK.get(thread);
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void setMountTask(Thread thread, Runnable mountTask) {
+        try {
+            MOUNT_TASK.set(thread, mountTask);
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup()
+                .findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle findCurrentCarrier() {
+        try {
+            final Method method = Thread.class.getDeclaredMethod("currentCarrierThread");
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+            // missing before Java 19, inaccessible unless java.lang is open to the limiter
+            return null;
+        }
+    }
+
+    private static Field findMountTask() {
+        try {
+            final Field field = Class.forName("java.lang.VirtualThread").getDeclaredField("runContinuation");
+            field.setAccessible(true);
+            return Runnable.class.isAssignableFrom(field.getType()) ? field : null;
+        } catch (ClassNotFoundException | NoSuchFieldException | RuntimeException e) {
+            // missing before Java 19, inaccessible unless java.lang is open to the limiter
+            return null;
+        }
+    }
+
+    /**
+     * A stay of the script on a carrier
+     */
+    private final class Mount {
+
+        private final Thread carrier;
+        /* True if the observer saw it start and will see it end */
+        private final boolean observed;
+        /* Carrier allocated bytes already charged, written by the script thread and then by the observer */
+        private volatile long charged;
+
+        private Mount(Thread carrier, boolean observed) {
+            this.carrier = carrier;
+            this.observed = observed;
+            this.charged = allocatedBy(carrier);
+        }
+    }
+
+    /**
+     * Runs the task mounting the script thread on the carrier running it, reading the carrier allocated bytes before
+     * the thread is mounted and after it's unmounted
+     */
+    private final class Observer implements Runnable {
+
+        private final Runnable mountTask;
+        private volatile boolean active = true;
+
+        private Observer(Runnable mountTask) {
+            this.mountTask = mountTask;
+        }
+
+        @Override
+        public void run() {
+            if (!active) {
+                mountTask.run();
+                return;
+            }
+            final Mount current = new Mount(Thread.currentThread(), true);
+            mount = current;
+            try {
+                mountTask.run();
+            } finally {
+                // the thread may be mounted on another carrier by now, this mount only charges its own tail
+                final long carrierAllocated = allocatedBy(current.carrier);
+                if (carrierAllocated > current.charged) {
+                    unmounted.addAndGet(carrierAllocated - current.charged);
+                }
+            }
+        }
+    }
+}
@@ -26,7 +26,36 @@ public @interface CheckMemoryQuota {
      */
     Class<?> handlerClass();
     /**
-     * @return handler method name
+     * @return handler method name, called synchronously on the script thread, empty for no synchronous handler
      */
-    String handlerMethod();
+    String handlerMethod() default "";
+    /**
+     * @return asynchronous handler method name on the handler class, accepting an InfringementEvent and called on the
+     * infringement dispatcher thread, for handlers that only log, alert or record metrics
+     */
+    String asyncHandlerMethod() default "";
+    /**
+     * @return maximum number of allocation samples kept for the run, at least 3, 0 disables the timeline
+     */
+    int timelineCapacity() default 0;
+    /**
+     * @return also check after every run of this many statements or allocations on long blocks and at the beginning of
+     * if, switch and try branches at least this long, 0 only checks on loops, closures and methods
+     */
+    int checkEvery() default 0;
+    /**
+     * @return direct and mapped buffer quota limit in bytes, setting it charges ByteBuffer.allocateDirect and
+     * FileChannel.map calls made by the script. Like the heap quota it limits cumulative allocation, released buffers
+     * are not credited.
+     */
+    long offHeapLimit() default Long.MAX_VALUE;
+    /**
+     * @return I/O quota limit in bytes, setting it charges file, URL and stream reads and writes made by the script
+     * through the Groovy JDK methods
+     */
+    long ioLimit() default Long.MAX_VALUE;
+    /**
+     * @return I/O handler method name on the handler class, accepting an IoQuotaCheck, setting it charges I/O too
+     */
+    String ioHandlerMethod() default "";
 }
@@ -1,265 +1,1191 @@
 package com.corunet.groovy.limiter;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.Reader;
 import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 import static org.codehaus.groovy.ast.tools.GeneralUtils.args;
 import static org.codehaus.groovy.ast.tools.GeneralUtils.assignX;
 import static org.codehaus.groovy.ast.tools.GeneralUtils.callX;
+import static org.codehaus.groovy.ast.tools.GeneralUtils.classX;
 import static org.codehaus.groovy.ast.tools.GeneralUtils.constX;
 import static org.codehaus.groovy.ast.tools.GeneralUtils.ctorX;
+import static org.codehaus.groovy.ast.tools.GeneralUtils.declS;
+import static org.codehaus.groovy.ast.tools.GeneralUtils.ifS;
+import static org.codehaus.groovy.ast.tools.GeneralUtils.isInstanceOfX;
+import static org.codehaus.groovy.ast.tools.GeneralUtils.notNullX;
 import static org.codehaus.groovy.ast.tools.GeneralUtils.propX;
 import static org.codehaus.groovy.ast.tools.GeneralUtils.stmt;
+import static org.codehaus.groovy.ast.tools.GeneralUtils.ternaryX;
 import static org.codehaus.groovy.ast.tools.GeneralUtils.varX;
 import com.sun.management.ThreadMXBean;
 import org.codehaus.groovy.GroovyBugError;
 import org.codehaus.groovy.ast.ASTNode;
 import org.codehaus.groovy.ast.AnnotatedNode;
 import org.codehaus.groovy.ast.AnnotationNode;
+import org.codehaus.groovy.ast.ClassCodeExpressionTransformer;
 import org.codehaus.groovy.ast.ClassCodeVisitorSupport;
 import org.codehaus.groovy.ast.ClassHelper;
 import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.CodeVisitorSupport;
 import org.codehaus.groovy.ast.FieldNode;
 import org.codehaus.groovy.ast.MethodNode;
 import org.codehaus.groovy.ast.ModuleNode;
 import org.codehaus.groovy.ast.PropertyNode;
+import org.codehaus.groovy.ast.Variable;
+import org.codehaus.groovy.ast.expr.ArgumentListExpression;
+import org.codehaus.groovy.ast.expr.ArrayExpression;
+import org.codehaus.groovy.ast.expr.BinaryExpression;
+import org.codehaus.groovy.ast.expr.BooleanExpression;
 import org.codehaus.groovy.ast.expr.ClassExpression;
 import org.codehaus.groovy.ast.expr.ClosureExpression;
 import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.ConstructorCallExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.GStringExpression;
+import org.codehaus.groovy.ast.expr.ListExpression;
+import org.codehaus.groovy.ast.expr.MapExpression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.expr.PropertyExpression;
+import org.codehaus.groovy.ast.expr.SpreadExpression;
+import org.codehaus.groovy.ast.expr.StaticMethodCallExpression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
 import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.CaseStatement;
+import org.codehaus.groovy.ast.stmt.CatchStatement;
 import org.codehaus.groovy.ast.stmt.DoWhileStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
 import org.codehaus.groovy.ast.stmt.ForStatement;
+import org.codehaus.groovy.ast.stmt.IfStatement;
 import org.codehaus.groovy.ast.stmt.LoopingStatement;
+import org.codehaus.groovy.ast.stmt.ReturnStatement;
 import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.ast.stmt.SwitchStatement;
+import org.codehaus.groovy.ast.stmt.ThrowStatement;
+import org.codehaus.groovy.ast.stmt.TryCatchStatement;
 import org.codehaus.groovy.ast.stmt.WhileStatement;
 import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.syntax.SyntaxException;
+import org.codehaus.groovy.syntax.Token;
+import org.codehaus.groovy.syntax.Types;
 import org.codehaus.groovy.transform.ASTTransformation;
 import org.codehaus.groovy.transform.GroovyASTTransformation;
 
+/**
+ * Inserts memory quota checks on the annotated script, class or method.
+ *
+ * An annotated script keeps its checker in a field, initialized when run() starts. An annotated class or method gets
+ * a budget of its own, measured from the entry of each call and nested in the checker bound to the thread at that
+ * time, see {@link ThreadBoundQuotaCheck#enter(String)}. Annotations on fields are applied to their class, and
+ * annotations on local variables and packages to the script. Code outside the annotated node is not modified.
+ *
+ * A single instance may be shared by many compilations running at the same time (for example when a
+ * {@link org.codehaus.groovy.control.customizers.ASTTransformationCustomizer} is reused), so this class holds no
+ * per-compilation state: every call to {@link #visit(ASTNode[], SourceUnit)} works on its own {@link Visitor}, and
+ * every wrapped site gets freshly built AST nodes.
+ */
 @GroovyASTTransformation
-public final class CheckMemoryQuotaASTTransformation
-    extends ClassCodeVisitorSupport implements ASTTransformation {
+public final class CheckMemoryQuotaASTTransformation implements ASTTransformation {
 
     private static final ClassNode ANNOTATION_CLASS = ClassHelper.make(CheckMemoryQuota.class);
+    private static final ClassNode MEMORY_QUOTA_CHECK = ClassHelper.make(MemoryQuotaCheck.class);
+    private static final ClassNode THREAD_BOUND_QUOTA_CHECK = ClassHelper.make(ThreadBoundQuotaCheck.class);
+    private static final ClassNode QUOTA_CHECK_SITES = ClassHelper.make(QuotaCheckSites.class);
+    /* Local variables holding scoped checkers, nested method and class scopes need different names */
+    private static final String METHOD_SCOPE_VARIABLE = "$$memoryQuotaMethodScope";
+    private static final String CLASS_SCOPE_VARIABLE = "$$memoryQuotaClassScope";
+    /* Node metadata key set on methods whose code already has checks */
+    private static final String CHECKED = CheckMemoryQuotaASTTransformation.class.getName() + ".checked";
 
-    protected SourceUnit source;
-    private Statement initCallStatement;
-    private Statement checkCallStatement;
-    private ClassNode currentClass;
+    /* Set once thread allocated memory measurement has been enabled on this JVM */
+    private static volatile boolean allocatedMemoryEnabled = false;
 
     /**
-     * Generates Groovy code to call the check function from the script
+     * Generates Groovy code to call the check function from the script, through the sites linked to the JVM wide mode
+     * of {@link QuotaCheckSites}
      *
-     * @return a Groovy {@link Statement} that calls this.checkerField.check()
+     * @param scoped true when checking a scoped checker instead of the script's one
+     * @return a Groovy {@link Statement} that calls QuotaCheckSites.check(this.checkerField), or
+     * QuotaCheckSites.check() if scoped
      */
-    private static Statement generateCheckStatement() {
-        // this.init()
+    private static Statement generateCheckStatement(boolean scoped) {
+        if (scoped) {
+            // QuotaCheckSites.check()
+            return stmt(callX(QUOTA_CHECK_SITES, "check"));
+        }
+        // QuotaCheckSites.check(this.checker)
         return stmt(callX(
-            propX(varX("this"), MemoryQuotaCheck.CHECKER_FIELD),
-            "check"
+            QUOTA_CHECK_SITES,
+            "check",
+            args(propX(varX("this"), MemoryQuotaCheck.CHECKER_FIELD))
         ));
     }
 
     /**
-     * Generates Groovy code to initialize the checker field
+     * Generates Groovy code referencing the checker being initialized
      *
-     * @param infringementHandlerClass the class used to handle memory excesses
-     * @param infringementHandlerName the method used to handle memory excesses
-     * @param limit the memory limit allowed
-     * @return a Groovy {@link Statement} that will initialize the checker field on this
+     * @param scopeVariable the local variable holding a scoped checker, null for the script's checker field
+     * @return a Groovy {@link Expression} for this.checkerField or the scope variable
      */
-    private static Statement generateInitStatement(
-        final ClassExpression infringementHandlerClass,
-        final String infringementHandlerName,
-        final ConstantExpression limit
-    ) {
+    private static Expression checkerX(VariableExpression scopeVariable) {
+        return scopeVariable == null ? propX(varX("this"), MemoryQuotaCheck.CHECKER_FIELD) : varX(scopeVariable);
+    }
+
+    /**
+     * Generates Groovy code to initialize the checker field, or a scoped checker
+     *
+     * @param settings the annotation parameters
+     * @param scopeVariable the local variable holding a scoped checker, null for the script's checker field
+     * @return a Groovy {@link Statement} that will initialize the checker field on this, or the scoped checker
+     */
+    private static Statement generateInitStatement(final Settings settings, final VariableExpression scopeVariable) {
         final BlockStatement statement = new BlockStatement();
-        statement.addStatements(Arrays.asList(
+        if (scopeVariable == null) {
             // this.checker = new MemoryQuotaChecker(ManagementFactory.getThreadMXBean())
-            stmt(assignX(
-                propX(varX("this"), MemoryQuotaCheck.CHECKER_FIELD),
+            statement.addStatement(stmt(assignX(
+                checkerX(null),
                 ctorX(
                     new ClassNode(MemoryQuotaCheck.class),
                     args(callX(new ClassNode(ManagementFactory.class), "getThreadMXBean"))
                 )
-            )),
+            )));
+        }
+        if (settings.handlerMethod != null) {
             // this.checker.setHandler(infringementHandlerClass, infringementHandlerName)
-            stmt(callX(
-                propX(varX("this"), MemoryQuotaCheck.CHECKER_FIELD),
+            statement.addStatement(stmt(callX(
+                checkerX(scopeVariable),
                 "setHandler",
                 args(
-                    infringementHandlerClass,
-                    constX(infringementHandlerName)
+                    classX(settings.handlerClass),
+                    constX(settings.handlerMethod)
                 )
-            )),
-            // this.checker.setLimit(limit)
-            stmt(callX(
-                propX(varX("this"), MemoryQuotaCheck.CHECKER_FIELD),
-                "setLimit",
-                args(limit)
-            )),
-            // this.checker.setScriptBinding(this.getBinding())
-            stmt(callX(
-                propX(varX("this"), MemoryQuotaCheck.CHECKER_FIELD),
-                "setScriptBinding",
-                args(callX(varX("this"), "getBinding"))
-            )),
-            // this.check.init()
-            stmt(callX(
-                propX(varX("this"), MemoryQuotaCheck.CHECKER_FIELD),
-                "init"
-            ))
-        ));
+            )));
+        }
+        if (settings.asyncHandlerMethod != null) {
+            // this.checker.setAsyncHandler(infringementHandlerClass, asyncHandlerName)
+            statement.addStatement(stmt(callX(
+                checkerX(scopeVariable),
+                "setAsyncHandler",
+                args(
+                    classX(settings.handlerClass),
+                    constX(settings.asyncHandlerMethod)
+                )
+            )));
+        }
+        // this.checker.setLimit(limit)
+        // long constants stay primitive, as the annotation members they may share a constant field with
+        statement.addStatement(stmt(callX(
+            checkerX(scopeVariable),
+            "setLimit",
+            args(constX(settings.limit, true))
+        )));
+        if (scopeVariable == null) {
+            statement.addStatements(Arrays.asList(
+                // this.checker.setScriptBinding(this.getBinding())
+                stmt(callX(
+                    checkerX(null),
+                    "setScriptBinding",
+                    args(callX(varX("this"), "getBinding"))
+                )),
+                // this.checker.setScriptClass(this.getClass())
+                stmt(callX(
+                    checkerX(null),
+                    "setScriptClass",
+                    args(callX(varX("this"), "getClass"))
+                )),
+                // this.check.init()
+                stmt(callX(
+                    checkerX(null),
+                    "init"
+                )),
+                // this.checker.bind()
+                stmt(callX(
+                    checkerX(null),
+                    "bind"
+                ))
+            ));
+        }
+        if (settings.timelineCapacity > 0) {
+            // this.checker.setTimeline(new AllocationTimeline(timelineCapacity))
+            statement.addStatement(stmt(callX(
+                checkerX(scopeVariable),
+                "setTimeline",
+                args(ctorX(new ClassNode(AllocationTimeline.class), args(constX(settings.timelineCapacity))))
+            )));
+        }
+        if (settings.offHeapLimit != null) {
+            // this.checker.setOffHeapLimit(offHeapLimit)
+            statement.addStatement(stmt(callX(
+                checkerX(scopeVariable),
+                "setOffHeapLimit",
+                args(constX(settings.offHeapLimit, true))
+            )));
+            // this.checker.recordOffHeapPoolBase()
+            statement.addStatement(stmt(callX(
+                checkerX(scopeVariable),
+                "recordOffHeapPoolBase"
+            )));
+        }
+        if (settings.isIoCharged()) {
+            // this.checker.setIoQuotaCheck(new IoQuotaCheck(ioLimit))
+            statement.addStatement(stmt(callX(
+                checkerX(scopeVariable),
+                "setIoQuotaCheck",
+                args(ctorX(
+                    new ClassNode(IoQuotaCheck.class),
+                    settings.ioLimit != null ? args(constX(settings.ioLimit, true)) : new ArgumentListExpression()
+                ))
+            )));
+        }
+        if (settings.ioHandlerMethod != null) {
+            // this.checker.ioQuotaCheck.setHandler(infringementHandlerClass, ioHandlerName)
+            statement.addStatement(stmt(callX(
+                propX(checkerX(scopeVariable), "ioQuotaCheck"),
+                "setHandler",
+                args(
+                    classX(settings.handlerClass),
+                    constX(settings.ioHandlerMethod)
+                )
+            )));
+        }
+        if (scopeVariable != null) {
+            // scope.start()
+            statement.addStatement(stmt(callX(
+                checkerX(scopeVariable),
+                "start"
+            )));
+        }
+        return statement;
+    }
+
+    /**
+     * Generates Groovy code that runs the given code with a checker of its own
+     *
+     * @param settings the annotation parameters
+     * @param scope name of the guarded method or class
+     * @param variableName name of the local variable holding the checker, different for method and class scopes
+     * @param code the guarded code
+     * @return a Groovy {@link Statement} that enters the scope, runs the code and leaves the scope
+     */
+    private static Statement generateScopeStatement(
+        Settings settings, String scope, String variableName, Statement code
+    ) {
+        final VariableExpression scopeVariable = new VariableExpression(variableName, MEMORY_QUOTA_CHECK);
+        final BlockStatement statement = new BlockStatement();
+        // MemoryQuotaCheck scope = ThreadBoundQuotaCheck.enter(scopeName)
+        statement.addStatement(declS(scopeVariable, callX(THREAD_BOUND_QUOTA_CHECK, "enter", args(constX(scope)))));
+        // if (scope != null) { ... scope.start() }
+        statement.addStatement(ifS(notNullX(varX(scopeVariable)), generateInitStatement(settings, scopeVariable)));
+        // try { code } finally { ThreadBoundQuotaCheck.exit(scope) }
+        statement.addStatement(new TryCatchStatement(code, stmt(callX(
+            THREAD_BOUND_QUOTA_CHECK,
+            "exit",
+            args(varX(scopeVariable))
+        ))));
         return statement;
     }
 
+    /**
+     * Generates Groovy code that runs the given code and then unbinds the checker from the thread
+     *
+     * @param code the script code
+     * @return a Groovy {@link TryCatchStatement} that calls this.checkerField.unbind() when done
+     */
+    private static TryCatchStatement generateUnbindStatement(Statement code) {
+        // try { code } finally { this.checker.unbind() }
+        return new TryCatchStatement(code, stmt(callX(
+            propX(varX("this"), MemoryQuotaCheck.CHECKER_FIELD),
+            "unbind"
+        )));
+    }
+
     public void visit(ASTNode[] nodes, SourceUnit source) {
         // Entry point of AST transformation
-        ThreadMXBean threadMXBean = ((ThreadMXBean) ManagementFactory.getThreadMXBean());
-        if (threadMXBean.isThreadAllocatedMemorySupported()) {
-            threadMXBean.setThreadAllocatedMemoryEnabled(true);
-        } else {
-            final String message = "Thread allocated memory not supported by this JVM. CheckMemoryQuota.";
-            throw new UnsupportedOperationException(message);
-        }
+        enableThreadAllocatedMemory();
 
         if (nodes.length != 2 || !(nodes[0] instanceof AnnotationNode) || !(nodes[1] instanceof AnnotatedNode)) {
             throw new GroovyBugError("Expecting [AnnotationNode, AnnotatedNode] but got: " + Arrays.asList(nodes));
         }
 
-        this.source = source;
         AnnotationNode node = (AnnotationNode) nodes[0];
 
         if (!ANNOTATION_CLASS.equals(node.getClassNode())) {
             throw new GroovyBugError("Transformation called from wrong annotation: " + node.getClassNode().getName());
         }
 
-        setupTransform(node);
+        final Settings settings = new Settings(node);
+        final AnnotatedNode target = (AnnotatedNode) nodes[1];
 
-        // Should be limited to the current SourceUnit or propagated to the whole CompilationUnit
-        final ModuleNode tree = source.getAST();
-        // Guard every class and method defined in this script
-        if (tree != null) {
-            final List<ClassNode> classes = tree.getClasses();
-            for (ClassNode classNode : classes) {
-                visitClass(classNode);
+        if (target instanceof MethodNode) {
+            guardMethod((MethodNode) target, settings, source);
+        } else if (target instanceof ClassNode) {
+            guardClass((ClassNode) target, settings, source);
+        } else if (target instanceof FieldNode) {
+            guardClass(((FieldNode) target).getDeclaringClass(), settings, source);
+        } else {
+            // local variables and packages have no scope of their own, they stand for the script
+            final ModuleNode tree = source.getAST();
+            boolean guarded = false;
+            if (tree != null) {
+                for (ClassNode classNode : tree.getClasses()) {
+                    if (classNode.isScript()) {
+                        guardClass(classNode, settings, source);
+                        guarded = true;
+                    }
+                }
+            }
+            if (!guarded) {
+                source.addError(new SyntaxException(
+                    "@CheckMemoryQuota on a local variable or package is only supported in scripts",
+                    target.getLineNumber(), target.getColumnNumber()
+                ));
             }
         }
     }
 
-    @Override
-    public void visitClass(ClassNode type) {
-        currentClass = type;
-        super.visitClass(type);
+    /**
+     * Guards a script with the checker in its field, or any other class with a checker of its own
+     */
+    private static void guardClass(ClassNode classNode, Settings settings, SourceUnit source) {
+        final String scope = classNode.isScript() ? null : classNode.getName();
+        new Visitor(source, settings, scope, CLASS_SCOPE_VARIABLE).visitClass(classNode);
+        if (settings.isIntercepting()) {
+            new CallInterceptor(source, settings).visitClass(classNode);
+        }
     }
 
-    @Override
-    public void visitAnnotations(AnnotatedNode node) {
-        // this transformation does not apply on annotation nodes
-        // visiting could lead to stack overflows
+    /**
+     * Guards a method with a checker of its own
+     */
+    private static void guardMethod(MethodNode methodNode, Settings settings, SourceUnit source) {
+        if (methodNode.isAbstract() || methodNode.getCode() == null) {
+            source.addError(new SyntaxException(
+                "@CheckMemoryQuota can't guard a method without code",
+                methodNode.getLineNumber(), methodNode.getColumnNumber()
+            ));
+            return;
+        }
+        final ClassNode classNode = methodNode.getDeclaringClass();
+        final String scope = classNode.getName() + "#" + methodNode.getTypeDescriptor();
+        new Visitor(source, settings, scope, METHOD_SCOPE_VARIABLE).visitScopedMethod(classNode, methodNode);
+        if (settings.isIntercepting()) {
+            new CallInterceptor(source, settings).visitMethodOf(classNode, methodNode);
+        }
     }
 
-    @Override
-    public void visitField(FieldNode node) {
-        if (!node.isStatic() && !node.isSynthetic()) {
-            super.visitField(node);
+    /**
+     * Enables thread allocated memory measurement the first time a script is transformed. Later calls only read a
+     * volatile flag.
+     *
+     * @throws UnsupportedOperationException if the JVM can't measure thread allocated memory
+     */
+    private static void enableThreadAllocatedMemory() {
+        if (allocatedMemoryEnabled) {
+            return;
+        }
+        ThreadMXBean threadMXBean = ((ThreadMXBean) ManagementFactory.getThreadMXBean());
+        if (threadMXBean.isThreadAllocatedMemorySupported()) {
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+            allocatedMemoryEnabled = true;
+        } else {
+            final String message = "Thread allocated memory not supported by this JVM. CheckMemoryQuota.";
+            throw new UnsupportedOperationException(message);
         }
     }
 
-    @Override
-    public void visitProperty(PropertyNode node) {
-        if (!node.isStatic() && !node.isSynthetic()) {
-            super.visitProperty(node);
+    /**
+     * Annotation parameters. Optional members are only present on the node when explicitly set.
+     */
+    private static final class Settings {
+
+        private final ClassNode handlerClass;
+        /* null unless set */
+        private final String handlerMethod;
+        private final String asyncHandlerMethod;
+        private final Object limit;
+        private final int timelineCapacity;
+        private final int checkEvery;
+        /* null unless off-heap allocations are charged */
+        private final Object offHeapLimit;
+        /* null unless set, I/O is charged when either is set */
+        private final Object ioLimit;
+        private final String ioHandlerMethod;
+
+        /**
+         * @param node the annotation node for this transformation
+         */
+        private Settings(AnnotationNode node) {
+            // Read limit parameter from annotation
+            this.limit = ((ConstantExpression) node.getMember("limit")).getValue();
+
+            // Read class and methods for infringement handlers
+            this.handlerClass = node.getMember("handlerClass").getType();
+            this.handlerMethod = stringMember(node, "handlerMethod");
+            this.asyncHandlerMethod = stringMember(node, "asyncHandlerMethod");
+
+            this.timelineCapacity = intMember(node, "timelineCapacity");
+            this.checkEvery = intMember(node, "checkEvery");
+            this.offHeapLimit = node.getMember("offHeapLimit") != null
+                ? ((ConstantExpression) node.getMember("offHeapLimit")).getValue()
+                : null;
+            this.ioLimit = node.getMember("ioLimit") != null
+                ? ((ConstantExpression) node.getMember("ioLimit")).getValue()
+                : null;
+            this.ioHandlerMethod = stringMember(node, "ioHandlerMethod");
         }
-    }
 
-    @Override
-    public void visitClosureExpression(ClosureExpression closureExpr) {
-        Statement code = closureExpr.getCode();
-        closureExpr.setCode(wrapBlock(code, checkCallStatement));
-        super.visitClosureExpression(closureExpr);
-    }
+        /**
+         * @return the member value, null if it's absent or empty
+         */
+        private static String stringMember(AnnotationNode node, String name) {
+            final ConstantExpression member = (ConstantExpression) node.getMember(name);
+            return member != null && !"".equals(member.getValue()) ? (String) member.getValue() : null;
+        }
 
-    @Override
-    public final void visitDoWhileLoop(DoWhileStatement doWhileStatement) {
-        visitLoop(doWhileStatement);
-        super.visitDoWhileLoop(doWhileStatement);
-    }
+        private boolean isIoCharged() {
+            return ioLimit != null || ioHandlerMethod != null;
+        }
 
-    @Override
-    public final void visitWhileLoop(WhileStatement whileStatement) {
-        visitLoop(whileStatement);
-        super.visitWhileLoop(whileStatement);
-    }
+        private boolean isIntercepting() {
+            return offHeapLimit != null || isIoCharged();
+        }
 
-    @Override
-    public final void visitForLoop(ForStatement forStatement) {
-        visitLoop(forStatement);
-        super.visitForLoop(forStatement);
+        private static int intMember(AnnotationNode node, String name) {
+            final ConstantExpression member = (ConstantExpression) node.getMember(name);
+            return member != null ? ((Number) member.getValue()).intValue() : 0;
+        }
     }
 
-    @Override
-    public void visitMethod(MethodNode node) {
-        if (node.getName().equals("run") && currentClass.isScript() && node.getParameters().length == 0) {
-            // the run() method will call the checker initialization routine
-            Statement code = node.getCode();
-            node.setCode(wrapBlock(code, initCallStatement));
-            super.visitMethod(node);
-        } else {
-            if (!node.isSynthetic() && !node.isStatic() && !node.isAbstract()) {
+    /**
+     * Walks an annotated class or method of a single compilation inserting the checks. Instances are never shared
+     * between threads.
+     */
+    private static final class Visitor extends ClassCodeVisitorSupport {
+
+        private final SourceUnit source;
+        private final Settings settings;
+        private final int checkEvery;
+        /* Guarded class or method, null when guarding a script */
+        private final String scope;
+        private final String scopeVariable;
+        /* Statements inserted by this visitor, they are not counted nor split as script statements */
+        private final Set<Statement> generated = Collections.newSetFromMap(new IdentityHashMap<Statement, Boolean>());
+        /* Limits of the running compilation, null if it has none */
+        private final CompilationQuotaCheck compilation = CompilationQuotaCheck.bound();
+        private ClassNode currentClass;
+
+        /**
+         * @param source the source being compiled
+         * @param settings the annotation parameters
+         * @param scope name of the guarded class or method, null when guarding a script
+         * @param scopeVariable name of the local variable holding scoped checkers
+         */
+        private Visitor(SourceUnit source, Settings settings, String scope, String scopeVariable) {
+            this.source = source;
+            this.settings = settings;
+            this.checkEvery = settings.checkEvery;
+            this.scope = scope;
+            this.scopeVariable = scopeVariable;
+        }
+
+        @Override
+        public void visitClass(ClassNode type) {
+            currentClass = type;
+            super.visitClass(type);
+        }
+
+        @Override
+        protected void visitStatement(Statement statement) {
+            if (compilation != null) {
+                compilation.poll();
+            }
+        }
+
+        @Override
+        public void visitAnnotations(AnnotatedNode node) {
+            // this transformation does not apply on annotation nodes
+            // visiting could lead to stack overflows
+        }
+
+        @Override
+        public void visitField(FieldNode node) {
+            if (!node.isStatic() && !node.isSynthetic()) {
+                super.visitField(node);
+            }
+        }
+
+        @Override
+        public void visitProperty(PropertyNode node) {
+            if (!node.isStatic() && !node.isSynthetic()) {
+                super.visitProperty(node);
+            }
+        }
+
+        @Override
+        public void visitClosureExpression(ClosureExpression closureExpr) {
+            Statement code = closureExpr.getCode();
+            closureExpr.setCode(wrapBlock(code, checkStatement()));
+            super.visitClosureExpression(closureExpr);
+        }
+
+        @Override
+        public void visitDoWhileLoop(DoWhileStatement doWhileStatement) {
+            visitLoop(doWhileStatement);
+            super.visitDoWhileLoop(doWhileStatement);
+        }
+
+        @Override
+        public void visitWhileLoop(WhileStatement whileStatement) {
+            visitLoop(whileStatement);
+            super.visitWhileLoop(whileStatement);
+        }
+
+        @Override
+        public void visitForLoop(ForStatement forStatement) {
+            visitLoop(forStatement);
+            super.visitForLoop(forStatement);
+        }
+
+        @Override
+        public void visitBlockStatement(BlockStatement block) {
+            // nested statements first, so the checks they get are known when weighing this block
+            super.visitBlockStatement(block);
+            if (checkEvery > 0 && !generated.contains(block)) {
+                splitBlock(block);
+            }
+        }
+
+        @Override
+        public void visitIfElse(IfStatement ifElse) {
+            if (checkEvery > 0) {
+                ifElse.setIfBlock(guardBranch(ifElse.getIfBlock()));
+                ifElse.setElseBlock(guardBranch(ifElse.getElseBlock()));
+            }
+            super.visitIfElse(ifElse);
+        }
+
+        @Override
+        public void visitSwitch(SwitchStatement statement) {
+            if (checkEvery > 0) {
+                for (CaseStatement caseStatement : statement.getCaseStatements()) {
+                    caseStatement.setCode(guardBranch(caseStatement.getCode()));
+                }
+                statement.setDefaultStatement(guardBranch(statement.getDefaultStatement()));
+            }
+            super.visitSwitch(statement);
+        }
+
+        @Override
+        public void visitTryCatchFinally(TryCatchStatement statement) {
+            if (checkEvery > 0 && !generated.contains(statement)) {
+                statement.setTryStatement(guardBranch(statement.getTryStatement()));
+                for (CatchStatement catchStatement : statement.getCatchStatements()) {
+                    catchStatement.setCode(guardBranch(catchStatement.getCode()));
+                }
+                statement.setFinallyStatement(guardBranch(statement.getFinallyStatement()));
+            }
+            super.visitTryCatchFinally(statement);
+        }
+
+        @Override
+        public void visitMethod(MethodNode node) {
+            if (scope != null) {
+                if (!node.isSynthetic() && !node.isAbstract() && node.getCode() != null) {
+                    visitScopedMethod(currentClass, node);
+                }
+            } else if (node.getName().equals("run") && currentClass.isScript() && node.getParameters().length == 0) {
+                if (!markChecked(node)) {
+                    // already guarded by another annotation
+                    return;
+                }
+                // the run() method will call the checker initialization routine
                 Statement code = node.getCode();
-                node.setCode(wrapBlock(code, checkCallStatement));
+                final Statement init = generateInitStatement(settings, null);
+                final TryCatchStatement unbind = generateUnbindStatement(code);
+                generated.add(init);
+                generated.add(unbind);
+                node.setCode(wrapBlock(unbind, init));
+                super.visitMethod(node);
+            } else if (!node.isSynthetic() && !node.isStatic() && markChecked(node)) {
+                if (!node.isAbstract()) {
+                    Statement code = node.getCode();
+                    node.setCode(wrapBlock(code, checkStatement()));
+                }
+                super.visitMethod(node);
             }
-            if (!node.isSynthetic() && !node.isStatic()) {
+        }
+
+        /**
+         * Inserts the checks in a method, unless another annotation did, and makes it enter its scope on every call.
+         * Static methods are guarded too, as scoped checks don't need the instance.
+         */
+        private void visitScopedMethod(ClassNode declaringClass, MethodNode node) {
+            currentClass = declaringClass;
+            if (markChecked(node)) {
                 super.visitMethod(node);
             }
+            node.setCode(generateScopeStatement(settings, scope, scopeVariable, node.getCode()));
         }
-    }
 
-    @Override
-    protected SourceUnit getSourceUnit() {
-        return source;
+        /**
+         * @return true if the method was not checked yet, and marks it as checked
+         */
+        private boolean markChecked(MethodNode node) {
+            if (node.getNodeMetaData(CHECKED) != null) {
+                return false;
+            }
+            node.setNodeMetaData(CHECKED, Boolean.TRUE);
+            return true;
+        }
+
+        @Override
+        protected SourceUnit getSourceUnit() {
+            return source;
+        }
+
+        /**
+         * Shortcut method which avoids duplicating code for every type of loop. Actually wraps the loopBlock of
+         * different types of loop statements.
+         */
+        private void visitLoop(LoopingStatement loopStatement) {
+            Statement statement = loopStatement.getLoopBlock();
+            loopStatement.setLoopBlock(wrapBlock(statement, checkStatement()));
+        }
+
+        /**
+         * Inserts a check after every run of statements weighing at least checkEvery. Compound statements only reset
+         * the run through the checks already placed inside them, along their heaviest path. No check is added after
+         * the last statement, the code following the block will have its own.
+         */
+        private void splitBlock(BlockStatement block) {
+            final List<Statement> statements = block.getStatements();
+            int weight = 0;
+            for (int i = 0; i < statements.size() - 1; i++) {
+                weight = flow(statements.get(i)).after(weight);
+                if (weight >= checkEvery && !generated.contains(statements.get(i + 1))) {
+                    statements.add(i + 1, checkStatement());
+                    weight = 0;
+                    i += 1;
+                }
+            }
+        }
+
+        /**
+         * @return the unchecked weight the statement leaves at its end, given the checks already placed inside it
+         */
+        private Flow flow(Statement statement) {
+            if (statement == null) {
+                return Flow.EMPTY;
+            }
+            if (generated.contains(statement) && !(statement instanceof TryCatchStatement)) {
+                return Flow.CHECKED;
+            }
+            if (statement instanceof BlockStatement) {
+                Flow flow = Flow.EMPTY;
+                for (Statement nested : ((BlockStatement) statement).getStatements()) {
+                    flow = flow.then(flow(nested));
+                }
+                return flow;
+            }
+            if (statement instanceof IfStatement) {
+                final IfStatement ifElse = (IfStatement) statement;
+                return flow(ifElse.getIfBlock()).or(flow(ifElse.getElseBlock()));
+            }
+            if (statement instanceof SwitchStatement) {
+                // fall through is ignored, every case is taken as a path of its own
+                final SwitchStatement switchStatement = (SwitchStatement) statement;
+                Flow flow = flow(switchStatement.getDefaultStatement());
+                for (CaseStatement caseStatement : switchStatement.getCaseStatements()) {
+                    flow = flow.or(flow(caseStatement.getCode()));
+                }
+                return flow;
+            }
+            if (statement instanceof TryCatchStatement) {
+                final TryCatchStatement tryCatch = (TryCatchStatement) statement;
+                Flow flow = flow(tryCatch.getTryStatement());
+                for (CatchStatement catchStatement : tryCatch.getCatchStatements()) {
+                    flow = flow.or(flow(catchStatement.getCode()));
+                }
+                return flow.then(flow(tryCatch.getFinallyStatement()));
+            }
+            return Flow.unchecked(StatementWeigher.weigh(statement));
+        }
+
+        /**
+         * Adds a check at the beginning of a branch weighing at least checkEvery
+         */
+        private Statement guardBranch(Statement branch) {
+            if (branch == null || StatementWeigher.weigh(branch) < checkEvery) {
+                return branch;
+            }
+            return wrapBlock(branch, checkStatement());
+        }
+
+        private Statement checkStatement() {
+            final Statement statement = generateCheckStatement(scope != null);
+            generated.add(statement);
+            return statement;
+        }
+
+        private Statement wrapBlock(Statement wrapped, Statement added) {
+            BlockStatement stmt = new BlockStatement();
+            stmt.addStatement(added);
+            stmt.addStatement(wrapped);
+            return stmt;
+        }
     }
 
     /**
-     * Shortcut method which avoids duplicating code for every type of loop. Actually wraps the loopBlock of different
-     * types of loop statements.
+     * Rewrites allocation and I/O calls made by the script so they are charged to the thread bound checker, see
+     * {@link OffHeapAllocations} and {@link IoOperations}. Instances are never shared between threads.
      */
-    private void visitLoop(LoopingStatement loopStatement) {
-        Statement statement = loopStatement.getLoopBlock();
-        loopStatement.setLoopBlock(wrapBlock(statement, checkCallStatement));
+    private static final class CallInterceptor extends ClassCodeExpressionTransformer {
+
+        private static final ClassNode BYTE_BUFFER = ClassHelper.make(ByteBuffer.class);
+        private static final ClassNode FILE_CHANNEL = ClassHelper.make(FileChannel.class);
+        private static final ClassNode OFF_HEAP_ALLOCATIONS = ClassHelper.make(OffHeapAllocations.class);
+        private static final ClassNode IO_OPERATIONS = ClassHelper.make(IoOperations.class);
+        /* Declared receiver types whose I/O calls are rewritten, calls on variables of other types test their value */
+        private static final List<ClassNode> IO_TYPES = Arrays.asList(
+            ClassHelper.make(File.class), ClassHelper.make(Path.class), ClassHelper.make(URL.class),
+            ClassHelper.make(InputStream.class), ClassHelper.make(Reader.class)
+        );
+        private static final List<String> STATIC_TYPING = Arrays.asList(
+            "groovy.transform.CompileStatic", "groovy.transform.TypeChecked"
+        );
+
+        private final SourceUnit source;
+        private final boolean offHeap;
+        private final boolean io;
+        /* Limits of the running compilation, null if it has none */
+        private final CompilationQuotaCheck compilation = CompilationQuotaCheck.bound();
+        private boolean classStaticallyTyped;
+        private boolean staticallyTyped;
+
+        private CallInterceptor(SourceUnit source, Settings settings) {
+            this.source = source;
+            this.offHeap = settings.offHeapLimit != null;
+            this.io = settings.isIoCharged();
+        }
+
+        @Override
+        public void visitClass(ClassNode node) {
+            classStaticallyTyped = isStaticallyTyped(node);
+            staticallyTyped = classStaticallyTyped;
+            super.visitClass(node);
+        }
+
+        @Override
+        protected void visitStatement(Statement statement) {
+            if (compilation != null) {
+                compilation.poll();
+            }
+        }
+
+        /**
+         * Rewrites the calls of a single method
+         */
+        private void visitMethodOf(ClassNode declaringClass, MethodNode node) {
+            classStaticallyTyped = isStaticallyTyped(declaringClass);
+            visitMethod(node);
+        }
+
+        @Override
+        protected void visitConstructorOrMethod(MethodNode node, boolean isConstructor) {
+            staticallyTyped = classStaticallyTyped || isStaticallyTyped(node);
+            super.visitConstructorOrMethod(node, isConstructor);
+            staticallyTyped = classStaticallyTyped;
+        }
+
+        @Override
+        public Expression transform(Expression expression) {
+            if (expression instanceof ClosureExpression) {
+                // closure code is not reached by expression transformation
+                ((ClosureExpression) expression).getCode().visit(this);
+                return expression;
+            }
+            if (expression instanceof MethodCallExpression) {
+                final Expression intercepted = intercept((MethodCallExpression) expression);
+                if (intercepted != null) {
+                    return intercepted;
+                }
+            }
+            if (offHeap && expression instanceof StaticMethodCallExpression) {
+                final StaticMethodCallExpression call = (StaticMethodCallExpression) expression;
+                if (BYTE_BUFFER.equals(call.getOwnerType()) && "allocateDirect".equals(call.getMethod())) {
+                    return redirect(OFF_HEAP_ALLOCATIONS, call, "allocateDirect", transform(call.getArguments()));
+                }
+            }
+            if (io && !staticallyTyped) {
+                if (expression instanceof BinaryExpression) {
+                    final Expression intercepted = intercept((BinaryExpression) expression);
+                    if (intercepted != null) {
+                        return intercepted;
+                    }
+                }
+                if (isInterceptedProperty(expression)) {
+                    final PropertyExpression property = (PropertyExpression) expression;
+                    final Expression getProperty = redirect(IO_OPERATIONS, property, "getProperty",
+                        args(transform(property.getObjectExpression()), constX(property.getPropertyAsString())));
+                    return isIoType(property.getObjectExpression())
+                        ? getProperty
+                        : chargedOr(property.getObjectExpression(), getProperty, property);
+                }
+            }
+            return super.transform(expression);
+        }
+
+        private Expression intercept(MethodCallExpression call) {
+            if (call.isSafe() || call.isSpreadSafe() || !(call.getArguments() instanceof ArgumentListExpression)) {
+                return null;
+            }
+            final String method = call.getMethodAsString();
+            final List<Expression> arguments = ((ArgumentListExpression) call.getArguments()).getExpressions();
+            final Expression receiver = call.getObjectExpression();
+            if (offHeap && "allocateDirect".equals(method) && receiver instanceof ClassExpression
+                && BYTE_BUFFER.equals(receiver.getType())) {
+                return redirect(OFF_HEAP_ALLOCATIONS, call, method, transform(call.getArguments()));
+            }
+            if (staticallyTyped || receiver instanceof ClassExpression || call.isImplicitThis()) {
+                return null;
+            }
+            if (offHeap && "map".equals(method) && arguments.size() == 3) {
+                return interceptMap(call, receiver, arguments);
+            }
+            if (io && method != null && IoOperations.isInterceptedMethod(method)
+                && (isIoType(receiver) || isUntypedVariable(receiver))) {
+                final List<Expression> redirected = new ArrayList<>(arguments.size());
+                for (Expression argument : arguments) {
+                    if (argument instanceof SpreadExpression) {
+                        return null;
+                    }
+                    redirected.add(transform(argument));
+                }
+                final Expression invoke = redirect(IO_OPERATIONS, call, "invoke", args(
+                    transform(receiver),
+                    constX(method),
+                    new ArrayExpression(ClassHelper.OBJECT_TYPE, redirected)
+                ));
+                if (isIoType(receiver)) {
+                    return invoke;
+                }
+                final MethodCallExpression original = new MethodCallExpression(
+                    receiver, call.getMethod(), new ArgumentListExpression(redirected));
+                original.setSourcePosition(call);
+                if (containsClosure(original.getArguments())) {
+                    // closures can't be compiled into both branches, the call is charged around its own call site
+                    return redirect(IO_OPERATIONS, call, "after", args(
+                        receiver,
+                        constX(method),
+                        callX(IO_OPERATIONS, "before", args(receiver, constX(method))),
+                        original
+                    ));
+                }
+                return chargedOr(receiver, invoke, original);
+            }
+            return null;
+        }
+
+        /**
+         * Redirects a map call whose receiver is declared as a file channel. On other receivers that can be evaluated
+         * twice the call is redirected only when the receiver is a channel at run time, the original call is kept
+         * otherwise.
+         */
+        private Expression interceptMap(MethodCallExpression call, Expression receiver, List<Expression> arguments) {
+            final ArgumentListExpression redirected = new ArgumentListExpression(transform(receiver));
+            for (Expression argument : arguments) {
+                if (argument instanceof SpreadExpression) {
+                    return null;
+                }
+                redirected.addExpression(transform(argument));
+            }
+            final Expression map = redirect(OFF_HEAP_ALLOCATIONS, call, "map", redirected);
+            if (isOfType(receiver, Collections.singletonList(FILE_CHANNEL))) {
+                return map;
+            }
+            if (!isUntypedVariable(receiver) || containsClosure(redirected)) {
+                // closures can't be compiled into both branches
+                return null;
+            }
+            final MethodCallExpression original = new MethodCallExpression(
+                receiver, call.getMethod(), new ArgumentListExpression(redirected.getExpressions().subList(1, 4)));
+            original.setSourcePosition(call);
+            final Expression guarded = ternaryX(isInstanceOfX(receiver, FILE_CHANNEL), map, original);
+            guarded.setSourcePosition(call);
+            return guarded;
+        }
+
+        private static boolean containsClosure(Expression expression) {
+            final boolean[] found = {false};
+            expression.visit(new CodeVisitorSupport() {
+                @Override
+                public void visitClosureExpression(ClosureExpression closure) {
+                    found[0] = true;
+                }
+            });
+            return found[0];
+        }
+
+        private Expression intercept(BinaryExpression expression) {
+            final Token operation = expression.getOperation();
+            final Expression left = expression.getLeftExpression();
+            if (operation.getType() == Types.LEFT_SHIFT && (isIoType(left) || isUntypedVariable(left))) {
+                final Expression right = transform(expression.getRightExpression());
+                final Expression leftShift =
+                    redirect(IO_OPERATIONS, expression, "leftShift", args(transform(left), right));
+                if (isIoType(left)) {
+                    return leftShift;
+                }
+                return containsClosure(right)
+                    ? null
+                    : chargedOr(left, leftShift, new BinaryExpression(left, operation, right));
+            }
+            if (!isInterceptedProperty(left) || !Types.ofType(operation.getType(), Types.ASSIGNMENT_OPERATOR)) {
+                return null;
+            }
+            final PropertyExpression property = (PropertyExpression) left;
+            final Expression value = transform(expression.getRightExpression());
+            if (operation.getType() != Types.ASSIGN) {
+                // compound assignments are left uncharged, the property must stay assignable
+                return new BinaryExpression(property, operation, value);
+            }
+            final Expression receiver = property.getObjectExpression();
+            final Expression setProperty = redirect(IO_OPERATIONS, expression, "setProperty",
+                args(transform(receiver), constX(property.getPropertyAsString()), value));
+            if (isIoType(receiver)) {
+                return setProperty;
+            }
+            final Expression original = new BinaryExpression(property, operation, value);
+            return containsClosure(value) ? original : chargedOr(receiver, setProperty, original);
+        }
+
+        private static boolean isInterceptedProperty(Expression expression) {
+            if (expression.getClass() != PropertyExpression.class) {
+                return false;
+            }
+            final PropertyExpression property = (PropertyExpression) expression;
+            final Expression receiver = property.getObjectExpression();
+            return !property.isSafe() && !property.isSpreadSafe()
+                && property.getPropertyAsString() != null
+                && IoOperations.isInterceptedProperty(property.getPropertyAsString())
+                && !(receiver instanceof ClassExpression)
+                && (isIoType(receiver) || isUntypedVariable(receiver));
+        }
+
+        /**
+         * @return true if the expression is a variable declared without a type, which can be evaluated twice to test
+         * its value before a call
+         */
+        private static boolean isUntypedVariable(Expression expression) {
+            return expression instanceof VariableExpression
+                && !((VariableExpression) expression).isThisExpression()
+                && !((VariableExpression) expression).isSuperExpression()
+                && ClassHelper.OBJECT_TYPE.equals(declaredType(expression));
+        }
+
+        /**
+         * @return an expression evaluating the redirected call when the receiver's I/O is charged, and the original
+         * one otherwise
+         */
+        private static Expression chargedOr(Expression receiver, Expression redirected, Expression original) {
+            final Expression charged = ternaryX(
+                new BooleanExpression(callX(IO_OPERATIONS, "isCharged", args(receiver))), redirected, original);
+            charged.setSourcePosition(original);
+            return charged;
+        }
+
+        /**
+         * @return true if the expression is declared as one of the I/O types, its value may still be of any class when
+         * the declaration is dynamic
+         */
+        private static boolean isIoType(Expression expression) {
+            return isOfType(expression, IO_TYPES);
+        }
+
+        /**
+         * @return true if the expression is declared as one of the given types
+         */
+        private static boolean isOfType(Expression expression, List<ClassNode> types) {
+            final ClassNode type = declaredType(expression);
+            if (type == null) {
+                return false;
+            }
+            for (ClassNode declared : types) {
+                if (type.equals(declared) || type.isDerivedFrom(declared) || type.implementsInterface(declared)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static ClassNode declaredType(Expression expression) {
+            if (expression instanceof VariableExpression) {
+                final Variable variable = ((VariableExpression) expression).getAccessedVariable();
+                return variable != null ? variable.getOriginType() : ((VariableExpression) expression).getOriginType();
+            }
+            return expression.getType();
+        }
+
+        private Expression redirect(ClassNode target, Expression original, String method, Expression arguments) {
+            final Expression call = callX(target, method, arguments);
+            call.setSourcePosition(original);
+            return call;
+        }
+
+        private static boolean isStaticallyTyped(AnnotatedNode node) {
+            for (AnnotationNode annotation : node.getAnnotations()) {
+                if (STATIC_TYPING.contains(annotation.getClassNode().getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        protected SourceUnit getSourceUnit() {
+            return source;
+        }
     }
 
     /**
-     * This method will create all the necessary metaprogramming infraestructure
-     *
-     * @param node the annotation node for this transformation
+     * Unchecked weight left at the end of a statement: open is the weight of its heaviest path without checks, closed
+     * the heaviest weight after the last check of the paths having one. Either is NONE when there is no such path.
      */
-    private void setupTransform(AnnotationNode node) {
+    private static final class Flow {
 
-        // Read limit parameter from annotation and instantiate the quota limiter
-        final ConstantExpression limitConstant = (ConstantExpression) node.getMember("limit");
+        private static final int NONE = -1;
+        private static final Flow EMPTY = new Flow(0, NONE);
+        private static final Flow CHECKED = new Flow(NONE, 0);
 
-        // Read class and method for infringement handler
-        final ClassExpression infringementHandlerClass = (ClassExpression) node.getMember("handlerClass");
-        final String infringementHandlerName = (String) ((ConstantExpression) node.getMember("handlerMethod"))
-            .getValue();
+        private final int open;
+        private final int closed;
 
-        // Build statements that can be called from Groovy
-        initCallStatement = generateInitStatement(
-            infringementHandlerClass,
-            infringementHandlerName,
-            limitConstant
-        );
+        private Flow(int open, int closed) {
+            this.open = open;
+            this.closed = closed;
+        }
+
+        private static Flow unchecked(int weight) {
+            return new Flow(weight, NONE);
+        }
+
+        /**
+         * @return the flow of this statement followed by the next one
+         */
+        private Flow then(Flow next) {
+            return new Flow(add(open, next.open), Math.max(add(closed, next.open), next.closed));
+        }
+
+        /**
+         * @return the flow of taking either this statement or the other one
+         */
+        private Flow or(Flow other) {
+            return new Flow(Math.max(open, other.open), Math.max(closed, other.closed));
+        }
+
+        /**
+         * @return the unchecked weight at the end of the statement given the one at its start
+         */
+        private int after(int weight) {
+            return Math.max(add(weight, open), closed);
+        }
 
-        checkCallStatement = generateCheckStatement();
+        private static int add(int weight, int other) {
+            return weight == NONE || other == NONE ? NONE : weight + other;
+        }
     }
 
-    private Statement wrapBlock(Statement wrapped, Statement added) {
-        BlockStatement stmt = new BlockStatement();
-        stmt.addStatement(added);
-        stmt.addStatement(wrapped);
-        return stmt;
+    /**
+     * Estimates how much work a statement does before reaching a check: one per statement plus one per allocation
+     * heavy expression. Loops and closures already check on every iteration or call so they weigh one.
+     */
+    private static final class StatementWeigher extends CodeVisitorSupport {
+
+        private int weight = 0;
+
+        private static int weigh(Statement statement) {
+            final StatementWeigher weigher = new StatementWeigher();
+            statement.visit(weigher);
+            return weigher.weight;
+        }
+
+        @Override
+        public void visitExpressionStatement(ExpressionStatement statement) {
+            weight += 1;
+            super.visitExpressionStatement(statement);
+        }
+
+        @Override
+        public void visitReturnStatement(ReturnStatement statement) {
+            weight += 1;
+            super.visitReturnStatement(statement);
+        }
+
+        @Override
+        public void visitThrowStatement(ThrowStatement statement) {
+            weight += 1;
+            super.visitThrowStatement(statement);
+        }
+
+        @Override
+        public void visitForLoop(ForStatement forLoop) {
+            weight += 1;
+        }
+
+        @Override
+        public void visitWhileLoop(WhileStatement loop) {
+            weight += 1;
+        }
+
+        @Override
+        public void visitDoWhileLoop(DoWhileStatement loop) {
+            weight += 1;
+        }
+
+        @Override
+        public void visitClosureExpression(ClosureExpression expression) {
+            weight += 1;
+        }
+
+        @Override
+        public void visitConstructorCallExpression(ConstructorCallExpression call) {
+            weight += 1;
+            super.visitConstructorCallExpression(call);
+        }
+
+        @Override
+        public void visitArrayExpression(ArrayExpression expression) {
+            weight += 1;
+            super.visitArrayExpression(expression);
+        }
+
+        @Override
+        public void visitListExpression(ListExpression expression) {
+            weight += 1;
+            super.visitListExpression(expression);
+        }
+
+        @Override
+        public void visitMapExpression(MapExpression expression) {
+            weight += 1;
+            super.visitMapExpression(expression);
+        }
+
+        @Override
+        public void visitGStringExpression(GStringExpression expression) {
+            weight += 1;
+            super.visitGStringExpression(expression);
+        }
     }
 }
@@ -0,0 +1,72 @@
+package com.corunet.groovy.limiter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import groovy.lang.GroovyClassLoader;
+import org.codehaus.groovy.control.CompilerConfiguration;
+
+/**
+ * A {@link GroovyClassLoader} that loads the classes selected by a {@link CheckMemoryQuotaClassTransformer} itself,
+ * instrumenting them, instead of delegating to its parent. Scripts compiled by this loader call into the instrumented
+ * copies, so precompiled helper libraries are charged to the script's quota.
+ */
+public class CheckMemoryQuotaClassLoader extends GroovyClassLoader {
+
+    private final CheckMemoryQuotaClassTransformer transformer;
+
+    /**
+     * @param parent the loader that can find the original class files
+     * @param config the compiler configuration for scripts compiled by this loader
+     * @param transformer selects and instruments the classes
+     */
+    public CheckMemoryQuotaClassLoader(
+        ClassLoader parent, CompilerConfiguration config, CheckMemoryQuotaClassTransformer transformer
+    ) {
+        super(parent, config);
+        this.transformer = transformer;
+    }
+
+    @Override
+    public Class<?> loadClass(String name, boolean lookupScriptFiles, boolean preferClassOverScript, boolean resolve)
+        throws ClassNotFoundException {
+        if (!transformer.isTransformed(name)) {
+            return super.loadClass(name, lookupScriptFiles, preferClassOverScript, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                final byte[] original = readClassFile(name);
+                if (original == null) {
+                    return super.loadClass(name, lookupScriptFiles, preferClassOverScript, resolve);
+                }
+                final byte[] instrumented = transformer.transform(original);
+                loaded = defineClass(name, instrumented, 0, instrumented.length);
+            }
+            if (resolve) {
+                resolveClass(loaded);
+            }
+            return loaded;
+        }
+    }
+
+    private byte[] readClassFile(String name) throws ClassNotFoundException {
+        final ClassLoader parent = getParent() != null ? getParent() : ClassLoader.getSystemClassLoader();
+        final InputStream in = parent.getResourceAsStream(name.replace('.', '/') + ".class");
+        if (in == null) {
+            return null;
+        }
+        try (InputStream classFile = in) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = classFile.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new ClassNotFoundException("Unable to read class file of " + name, e);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.corunet.groovy.limiter;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import groovyjarjarasm.asm.ClassReader;
+import groovyjarjarasm.asm.ClassVisitor;
+import groovyjarjarasm.asm.ClassWriter;
+import groovyjarjarasm.asm.Handle;
+import groovyjarjarasm.asm.Label;
+import groovyjarjarasm.asm.MethodVisitor;
+import groovyjarjarasm.asm.Opcodes;
+
+/**
+ * Instruments compiled classes so they check the quota of the {@link ThreadBoundQuotaCheck} at every method entry and
+ * backward branch, giving guarded scripts near complete coverage of precompiled libraries they call into, including
+ * {@code @CompileStatic} code.
+ *
+ * Classes of version 51 (Java 7) or later get invokedynamic check sites linked by {@link QuotaCheckSites}, so they can
+ * be switched off without cost. Older classes, as emitted by default by Groovy, call the check statically.
+ *
+ * Only classes in the selected packages are instrumented. It can be used at load time through a
+ * {@link CheckMemoryQuotaClassLoader} or at build time running {@link #main(String[])} on a classes directory.
+ */
+public class CheckMemoryQuotaClassTransformer {
+
+    private static final String CHECK_METHOD = "check";
+    private static final String CHECK_DESCRIPTOR = "()V";
+    private static final Handle CHECK_BOOTSTRAP = new Handle(
+        Opcodes.H_INVOKESTATIC,
+        QuotaCheckSites.INTERNAL_NAME,
+        QuotaCheckSites.BOOTSTRAP_METHOD,
+        QuotaCheckSites.BOOTSTRAP_DESCRIPTOR
+    );
+    private static final String LIMITER_PACKAGE = CheckMemoryQuotaClassTransformer.class.getPackage().getName() + ".";
+
+    /* Package prefixes to instrument, with a trailing dot */
+    private final String[] packages;
+
+    /**
+     * Creates a transformer for the classes in the given packages and their subpackages
+     *
+     * @param packages package names, like {@code com.example.helpers}
+     */
+    public CheckMemoryQuotaClassTransformer(String... packages) {
+        this.packages = new String[packages.length];
+        for (int i = 0; i < packages.length; i++) {
+            this.packages[i] = packages[i].endsWith(".") ? packages[i] : packages[i] + ".";
+        }
+    }
+
+    /**
+     * Tells if a class should be instrumented. Classes of the limiter itself never are.
+     *
+     * @param className binary name of the class, like {@code com.example.helpers.Strings}
+     * @return true if the class belongs to one of the selected packages
+     */
+    public boolean isTransformed(String className) {
+        if (className.startsWith(LIMITER_PACKAGE) && className.indexOf('.', LIMITER_PACKAGE.length()) < 0) {
+            return false;
+        }
+        for (String prefix : packages) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Instruments a class
+     *
+     * @param classBytes class file contents
+     * @return the instrumented class file contents
+     */
+    public byte[] transform(byte[] classBytes) {
+        final ClassReader reader = new ClassReader(classBytes);
+        // No branch is added, so the existing stack map frames stay valid and only max stack must be recomputed
+        final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new CheckClassVisitor(writer), 0);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Instruments in place the selected packages of a classes directory, for use at build time.
+     *
+     * @param args the classes directory followed by the packages to instrument
+     * @throws IOException if a class file can't be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CheckMemoryQuotaClassTransformer <classes directory> <package>...");
+            System.exit(1);
+        }
+        final Path root = Paths.get(args[0]);
+        final CheckMemoryQuotaClassTransformer transformer =
+            new CheckMemoryQuotaClassTransformer(Arrays.copyOfRange(args, 1, args.length));
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final String relative = root.relativize(file).toString();
+                if (relative.endsWith(".class")) {
+                    final String className = relative
+                        .substring(0, relative.length() - ".class".length())
+                        .replace(file.getFileSystem().getSeparator(), ".");
+                    if (transformer.isTransformed(className)) {
+                        Files.write(file, transformer.transform(Files.readAllBytes(file)));
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static final class CheckClassVisitor extends ClassVisitor {
+
+        private boolean invokeDynamic;
+
+        private CheckClassVisitor(ClassVisitor classVisitor) {
+            super(Opcodes.ASM5, classVisitor);
+        }
+
+        @Override
+        public void visit(
+            int version, int access, String name, String signature, String superName, String[] interfaces
+        ) {
+            // the minor version lives in the high 16 bits
+            invokeDynamic = (version & 0xFFFF) >= Opcodes.V1_7;
+            super.visit(version, access, name, signature, superName, interfaces);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(
+            int access, String name, String desc, String signature, String[] exceptions
+        ) {
+            final MethodVisitor methodVisitor = super.visitMethod(access, name, desc, signature, exceptions);
+            if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0 || methodVisitor == null) {
+                return methodVisitor;
+            }
+            return new CheckMethodVisitor(methodVisitor, invokeDynamic);
+        }
+    }
+
+    private static final class CheckMethodVisitor extends MethodVisitor {
+
+        /* Labels already visited, a jump to one of them is a backward branch */
+        private final Set<Label> visited = new HashSet<>();
+        private final boolean invokeDynamic;
+
+        private CheckMethodVisitor(MethodVisitor methodVisitor, boolean invokeDynamic) {
+            super(Opcodes.ASM5, methodVisitor);
+            this.invokeDynamic = invokeDynamic;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            insertCheck();
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            visited.add(label);
+            super.visitLabel(label);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            if (visited.contains(label)) {
+                // The check leaves the operand stack untouched, so it can run before the jump reads its operands
+                insertCheck();
+            }
+            super.visitJumpInsn(opcode, label);
+        }
+
+        private void insertCheck() {
+            if (invokeDynamic) {
+                super.visitInvokeDynamicInsn(CHECK_METHOD, CHECK_DESCRIPTOR, CHECK_BOOTSTRAP);
+            } else {
+                super.visitMethodInsn(
+                    Opcodes.INVOKESTATIC, ThreadBoundQuotaCheck.INTERNAL_NAME, CHECK_METHOD, CHECK_DESCRIPTOR, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.corunet.groovy.limiter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.management.ThreadMXBean;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.ProcessingUnit;
+import org.codehaus.groovy.control.messages.SimpleMessage;
+
+/**
+ * Measures the memory allocated and the CPU time spent by the thread compiling a script, phase by phase, and aborts the
+ * compilation when either exceeds its limit.
+ *
+ * Limits are checked when each compiler phase ends. While a check is bound to the compiling thread, see
+ * {@link CompilationQuotaClassLoader}, it's also polled in the middle of the phases where deeply nested or huge input
+ * blows up: the loader's parser polls it while reading the source and while converting it to the AST, and the
+ * {@link CheckMemoryQuota} transformation on every statement it visits. Other phases may still overshoot by their own
+ * cost. The compilation then fails with a fatal error naming the limit and the phase, which
+ * {@link groovy.lang.GroovyClassLoader} reports as a
+ * {@link org.codehaus.groovy.control.MultipleCompilationErrorsException}.
+ */
+public class CompilationQuotaCheck {
+
+    /* Check of the compilation running on each thread */
+    private static final ThreadLocal<CompilationQuotaCheck> BOUND = new ThreadLocal<>();
+    /* ThreadMXBean.getCurrentThreadAllocatedBytes(), null before Java 14 */
+    private static final MethodHandle CURRENT_THREAD_ALLOCATED_BYTES = findCurrentThreadAllocatedBytes();
+
+    /* ThreadMXBean used to measure the compiling thread */
+    private final ThreadMXBean threadMXBean;
+    /* Limits, in bytes and nanoseconds */
+    private final long allocationLimit;
+    private final long cpuTimeLimit;
+    /* Counters of the compiling thread when the previous phase ended */
+    private long lastAllocated;
+    private long lastCpuTime;
+    /* Cost by phase number */
+    private final long[] allocated = new long[Phases.ALL + 1];
+    private final long[] cpuTime = new long[Phases.ALL + 1];
+    /* Last completed phase, 0 before the first one */
+    private int phase = 0;
+    /* Watched unit, null before attach() */
+    private CompilationUnit compilationUnit;
+    /* True once a limit has failed the compilation */
+    private boolean exceeded = false;
+
+    /**
+     * Creates a check with the given limits
+     *
+     * @param threadMXBean {@link ThreadMXBean} that will be used to measure the compiling thread
+     * @param allocationLimit memory the compilation may allocate in bytes
+     * @param cpuTimeLimit CPU time the compilation may spend
+     * @param unit unit of the CPU time limit
+     * @throws IllegalArgumentException when a limit is negative
+     */
+    public CompilationQuotaCheck(ThreadMXBean threadMXBean, long allocationLimit, long cpuTimeLimit, TimeUnit unit) {
+        if (allocationLimit < 0) {
+            throw new IllegalArgumentException(
+                "Allocation limit should be a positive number but it was " + allocationLimit);
+        }
+        if (cpuTimeLimit < 0) {
+            throw new IllegalArgumentException("CPU time limit should be a positive number but it was " + cpuTimeLimit);
+        }
+        this.threadMXBean = threadMXBean;
+        this.allocationLimit = allocationLimit;
+        this.cpuTimeLimit = unit.toNanos(cpuTimeLimit);
+    }
+
+    /**
+     * Starts measuring the current thread and checks the limits at the end of every phase of the given unit, which must
+     * be compiled by this thread.
+     *
+     * @param compilationUnit the unit to watch, its progress callback is replaced
+     * @throws UnsupportedOperationException if the JVM can't measure thread allocated memory
+     */
+    public void attach(CompilationUnit compilationUnit) {
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException(
+                "Thread allocated memory not supported by this JVM. CompilationQuotaCheck.");
+        }
+        if (!threadMXBean.isThreadAllocatedMemoryEnabled()) {
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        }
+        if (threadMXBean.isCurrentThreadCpuTimeSupported() && !threadMXBean.isThreadCpuTimeEnabled()) {
+            threadMXBean.setThreadCpuTimeEnabled(true);
+        }
+        lastAllocated = allocatedNow();
+        lastCpuTime = cpuTimeNow();
+        this.compilationUnit = compilationUnit;
+        compilationUnit.setProgressCallback(new CompilationUnit.ProgressCallback() {
+            @Override
+            public void call(ProcessingUnit context, int phase) {
+                phaseCompleted(context, phase);
+            }
+        });
+    }
+
+    private void phaseCompleted(ProcessingUnit context, int completed) {
+        final long currentAllocated = allocatedNow();
+        final long currentCpuTime = cpuTimeNow();
+        allocated[completed] += currentAllocated - lastAllocated;
+        cpuTime[completed] += currentCpuTime - lastCpuTime;
+        lastAllocated = currentAllocated;
+        lastCpuTime = currentCpuTime;
+        phase = completed;
+        checkLimits(context, getAllocatedBytes(), getCpuTime(), "by the end of phase '"
+            + Phases.getDescription(completed) + "'");
+    }
+
+    /**
+     * Checks the limits in the middle of the running phase, failing the compilation if one is exceeded. Cheap enough
+     * to be called on every statement visited by a transformation. Must be called from the compiling thread.
+     */
+    public void poll() {
+        if (compilationUnit == null || exceeded) {
+            return;
+        }
+        final long allocatedBytes = getAllocatedBytes() + allocatedNow() - lastAllocated;
+        final long spentCpuTime = getCpuTime() + cpuTimeNow() - lastCpuTime;
+        checkLimits(compilationUnit, allocatedBytes, spentCpuTime, "during phase '"
+            + Phases.getDescription(compilationUnit.getPhase()) + "'");
+    }
+
+    private void checkLimits(ProcessingUnit context, long allocatedBytes, long spentCpuTime, String when) {
+        if (allocatedBytes > allocationLimit) {
+            exceeded = true;
+            context.getErrorCollector().addFatalError(new SimpleMessage("Compilation allocated "
+                + allocatedBytes + " bytes " + when + ", over the limit of " + allocationLimit + " bytes", context));
+        }
+        if (spentCpuTime > cpuTimeLimit) {
+            exceeded = true;
+            context.getErrorCollector().addFatalError(new SimpleMessage("Compilation took "
+                + TimeUnit.NANOSECONDS.toMillis(spentCpuTime) + " ms of CPU time " + when
+                + ", over the limit of " + TimeUnit.NANOSECONDS.toMillis(cpuTimeLimit) + " ms", context));
+        }
+    }
+
+    /**
+     * @return the check of the compilation running on the current thread, null if there is none
+     */
+    public static CompilationQuotaCheck bound() {
+        return BOUND.get();
+    }
+
+    /**
+     * Binds a check to the current thread, so transformations can poll it while the thread compiles
+     *
+     * @param compilationQuotaCheck the check, null to unbind
+     */
+    public static void bind(CompilationQuotaCheck compilationQuotaCheck) {
+        if (compilationQuotaCheck != null) {
+            BOUND.set(compilationQuotaCheck);
+        } else {
+            BOUND.remove();
+        }
+    }
+
+    /**
+     * @return memory allocated by the compiling thread, read without looking the thread up when the JVM allows it
+     */
+    private long allocatedNow() {
+        if (CURRENT_THREAD_ALLOCATED_BYTES == null) {
+            return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        try {
+            return (long) CURRENT_THREAD_ALLOCATED_BYTES.invokeExact(threadMXBean);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    /**
+     * @return CPU time of the compiling thread, 0 if the JVM doesn't measure it
+     */
+    private long cpuTimeNow() {
+        final long now = threadMXBean.getCurrentThreadCpuTime();
+        return now < 0L ? 0L : now;
+    }
+
+    private static MethodHandle findCurrentThreadAllocatedBytes() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(
+                ThreadMXBean.class, "getCurrentThreadAllocatedBytes", MethodType.methodType(long.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return memory allocated by the completed phases in bytes
+     */
+    public long getAllocatedBytes() {
+        long total = 0L;
+        for (long bytes : allocated) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * @param phase a phase number, see {@link Phases}
+     * @return memory allocated during the given phase in bytes, 0 if it hasn't completed
+     */
+    public long getAllocatedBytes(int phase) {
+        return allocated[phase];
+    }
+
+    /**
+     * @return CPU time spent by the completed phases in nanoseconds
+     */
+    public long getCpuTime() {
+        long total = 0L;
+        for (long nanos : cpuTime) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    /**
+     * @param phase a phase number, see {@link Phases}
+     * @return CPU time spent during the given phase in nanoseconds, 0 if it hasn't completed
+     */
+    public long getCpuTime(int phase) {
+        return cpuTime[phase];
+    }
+
+    /**
+     * @return the last completed phase, 0 if none has completed yet
+     */
+    public int getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the allocation limit in bytes
+     */
+    public long getAllocationLimit() {
+        return allocationLimit;
+    }
+
+    /**
+     * @return the CPU time limit in nanoseconds
+     */
+    public long getCpuTimeLimit() {
+        return cpuTimeLimit;
+    }
+
+    /**
+     * @return the cost of every completed phase, for logging
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("CompilationQuotaCheck{");
+        for (int i = Phases.INITIALIZATION; i <= phase; i++) {
+            if (i > Phases.INITIALIZATION) {
+                builder.append(", ");
+            }
+            builder.append(Phases.getDescription(i))
+                .append('=').append(allocated[i]).append(" bytes/")
+                .append(TimeUnit.NANOSECONDS.toMicros(cpuTime[i])).append(" us");
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,178 @@
+package com.corunet.groovy.limiter;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.security.CodeSource;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.sun.management.ThreadMXBean;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
+import groovyjarjarantlr.collections.AST;
+import org.codehaus.groovy.antlr.AntlrParserPlugin;
+import org.codehaus.groovy.antlr.AntlrParserPluginFactory;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.ParserPlugin;
+import org.codehaus.groovy.control.ParserPluginFactory;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.codehaus.groovy.syntax.Reduction;
+
+/**
+ * A {@link GroovyClassLoader} that guards every compilation with a {@link CompilationQuotaCheck}, so pathologically
+ * large or nested scripts fail to compile instead of exhausting the compiling thread's memory and CPU before any
+ * runtime quota applies. The check is bound to the compiling thread while the compilation runs.
+ *
+ * Scripts are parsed by a parser that polls the check while it reads the source and converts it to the AST, unless the
+ * configuration brings a parser of its own.
+ */
+public class CompilationQuotaClassLoader extends GroovyClassLoader {
+
+    private final ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long allocationLimit;
+    private final long cpuTimeLimit;
+    /* Receives the check of every finished or aborted compilation */
+    private volatile Consumer<CompilationQuotaCheck> listener;
+
+    /**
+     * @param parent the parent loader
+     * @param config the compiler configuration for scripts compiled by this loader
+     * @param allocationLimit memory a compilation may allocate in bytes
+     * @param cpuTimeLimit CPU time a compilation may spend
+     * @param unit unit of the CPU time limit
+     * @throws IllegalArgumentException when a limit is negative
+     */
+    public CompilationQuotaClassLoader(
+        ClassLoader parent, CompilerConfiguration config, long allocationLimit, long cpuTimeLimit, TimeUnit unit
+    ) {
+        super(parent, withPollingParser(config != null ? config : CompilerConfiguration.DEFAULT));
+        // fail on bad limits now rather than on the first compilation
+        new CompilationQuotaCheck(threadMXBean, allocationLimit, cpuTimeLimit, unit);
+        this.allocationLimit = allocationLimit;
+        this.cpuTimeLimit = unit.toNanos(cpuTimeLimit);
+    }
+
+    /**
+     * Sets a listener for the per-phase cost of compilations, called on the compiling thread after each one, even if it
+     * failed.
+     *
+     * @param listener the listener, or null to remove it
+     */
+    public void setListener(Consumer<CompilationQuotaCheck> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return the listener for the per-phase cost of compilations, null if none
+     */
+    public Consumer<CompilationQuotaCheck> getListener() {
+        return listener;
+    }
+
+    @Override
+    protected CompilationUnit createCompilationUnit(CompilerConfiguration config, CodeSource source) {
+        final CompilationUnit compilationUnit = super.createCompilationUnit(config, source);
+        final CompilationQuotaCheck compilationQuotaCheck = new CompilationQuotaCheck(
+            threadMXBean, allocationLimit, cpuTimeLimit, TimeUnit.NANOSECONDS);
+        compilationQuotaCheck.attach(compilationUnit);
+        CompilationQuotaCheck.bind(compilationQuotaCheck);
+        return compilationUnit;
+    }
+
+    @Override
+    public Class<?> parseClass(GroovyCodeSource codeSource, boolean shouldCacheSource)
+        throws CompilationFailedException {
+        final CompilationQuotaCheck enclosing = CompilationQuotaCheck.bound();
+        CompilationQuotaCheck.bind(null);
+        try {
+            return super.parseClass(codeSource, shouldCacheSource);
+        } finally {
+            final CompilationQuotaCheck compilationQuotaCheck = CompilationQuotaCheck.bound();
+            CompilationQuotaCheck.bind(enclosing);
+            final Consumer<CompilationQuotaCheck> currentListener = listener;
+            // null when the class came from the source cache
+            if (compilationQuotaCheck != null && currentListener != null) {
+                currentListener.accept(compilationQuotaCheck);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the configuration whose parser polls the check bound to the compiling thread
+     */
+    private static CompilerConfiguration withPollingParser(CompilerConfiguration config) {
+        final CompilerConfiguration polling = new CompilerConfiguration(config);
+        // left out by the copy constructor
+        polling.addCompilationCustomizers(config.getCompilationCustomizers().toArray(new CompilationCustomizer[0]));
+        polling.setPluginFactory(new ParserPluginFactory() {
+            @Override
+            public ParserPlugin createParserPlugin() {
+                final ParserPluginFactory factory = config.getPluginFactory();
+                return factory.getClass() == AntlrParserPluginFactory.class
+                    ? new PollingParserPlugin()
+                    : factory.createParserPlugin();
+            }
+        });
+        return polling;
+    }
+
+    /**
+     * The default parser, polling the check bound to the compiling thread every {@value #POLL_INTERVAL} characters
+     * read and AST nodes converted
+     */
+    private static final class PollingParserPlugin extends AntlrParserPlugin {
+
+        private static final int POLL_INTERVAL = 256;
+
+        private int untilPoll = POLL_INTERVAL;
+
+        @Override
+        public Reduction parseCST(SourceUnit sourceUnit, Reader reader) throws CompilationFailedException {
+            // the lexer reads as the parser asks for tokens, so this polls all along parsing
+            return super.parseCST(sourceUnit, new FilterReader(reader) {
+                @Override
+                public int read() throws IOException {
+                    poll(1);
+                    return super.read();
+                }
+
+                @Override
+                public int read(char[] buffer, int offset, int length) throws IOException {
+                    final int read = super.read(buffer, offset, length);
+                    poll(Math.max(read, 0));
+                    return read;
+                }
+            });
+        }
+
+        @Override
+        protected Statement statement(AST node) {
+            poll(1);
+            return super.statement(node);
+        }
+
+        @Override
+        protected Expression expression(AST node, boolean convertToConstant) {
+            poll(1);
+            return super.expression(node, convertToConstant);
+        }
+
+        private void poll(int count) {
+            untilPoll -= count;
+            if (untilPoll <= 0) {
+                untilPoll = POLL_INTERVAL;
+                final CompilationQuotaCheck compilationQuotaCheck = CompilationQuotaCheck.bound();
+                if (compilationQuotaCheck != null) {
+                    compilationQuotaCheck.poll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.corunet.groovy.limiter;
+
+import java.security.PrivilegedAction;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Delivers infringements to asynchronous handlers on a dedicated thread, so handlers that only log, alert or record
+ * metrics don't stall the script.
+ *
+ * Publishing never blocks nor locks: events go to a bounded lock-free queue, and an infringement of the same kind by a
+ * checker whose previous event is still queued is coalesced into that event. When the queue is full new events are
+ * dropped and counted. Handlers able to stop the script must stay synchronous, see
+ * {@link MemoryQuotaCheck#setHandler(java.util.function.Consumer)}.
+ *
+ * The dispatcher thread is started by the first script that publishes, but it holds nothing of it: it's created with
+ * the limiter's own access control context and context class loader, so it doesn't keep the script's loader alive.
+ */
+public class InfringementDispatcher {
+
+    /* Queue capacity of the default dispatcher */
+    public static final int DEFAULT_CAPACITY = 1024;
+    /* Longest time the consumer sleeps without being woken up, in nanoseconds */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static volatile InfringementDispatcher defaultDispatcher;
+
+    private final int capacity;
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    /* Queued events by checker and kind, for coalescing */
+    private final ConcurrentHashMap<Key, Pending> pendingEvents = new ConcurrentHashMap<>();
+    /* Queued events plus the one being handled */
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile Thread consumer;
+    private volatile boolean shutdown = false;
+    /* Stats */
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Creates a dispatcher, its thread is started on the first event
+     *
+     * @param capacity maximum number of queued events
+     * @throws IllegalArgumentException when the capacity is not positive
+     */
+    public InfringementDispatcher(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                "Dispatcher capacity should be a positive number but it was " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the dispatcher used by checkers that don't set one, created on first use
+     */
+    public static InfringementDispatcher getDefault() {
+        InfringementDispatcher dispatcher = defaultDispatcher;
+        if (dispatcher == null) {
+            synchronized (InfringementDispatcher.class) {
+                dispatcher = defaultDispatcher;
+                if (dispatcher == null) {
+                    dispatcher = new InfringementDispatcher(DEFAULT_CAPACITY);
+                    defaultDispatcher = dispatcher;
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Publishes an infringement, coalescing it with the queued one of the same checker and kind if there is one
+     *
+     * @param memoryQuotaCheck the checker whose quota was infringed
+     * @param kind the quota that was infringed
+     * @param usage usage in bytes
+     * @param limit limit in bytes
+     * @param handler the asynchronous handler to deliver the event to
+     * @return false if the event was dropped because the queue was full or the dispatcher was shut down
+     */
+    public boolean publish(
+        MemoryQuotaCheck memoryQuotaCheck, InfringementEvent.Kind kind, long usage, long limit,
+        Consumer<InfringementEvent> handler
+    ) {
+        if (shutdown) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        published.incrementAndGet();
+        final Key key = memoryQuotaCheck.dispatchKey(kind);
+        final Pending queued = pendingEvents.get(key);
+        if (queued != null && queued.merge(usage)) {
+            coalesced.incrementAndGet();
+            return true;
+        }
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        final Pending pending = new Pending(key, usage, limit, handler, Thread.currentThread().getId());
+        pendingEvents.put(key, pending);
+        queue.offer(pending);
+        startOrWakeUp();
+        return true;
+    }
+
+    /**
+     * Waits until every queued event has been handled
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return true if the queue was drained, false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (size.get() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    /**
+     * Stops the dispatcher thread once the queued events are handled. Later events are dropped.
+     */
+    public void shutdown() {
+        shutdown = true;
+        final Thread thread = consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return events published, including coalesced ones
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * @return events coalesced into a queued one
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return events dropped because the queue was full or the dispatcher was shut down
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return events handed to their handler
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return events whose handler threw an exception. A handler throwing an error isn't counted, the error ends the
+     * dispatcher thread and a new one is started for the next events.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return events waiting or being handled
+     */
+    public int getQueueSize() {
+        return size.get();
+    }
+
+    private void startOrWakeUp() {
+        if (started.compareAndSet(false, true)) {
+            final Thread thread = newConsumerThread();
+            consumer = thread;
+            thread.start();
+        } else {
+            final Thread thread = consumer;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * Creates the consumer thread without the caller's access control context or context class loader, which would
+     * otherwise be inherited from the script thread publishing the first event
+     */
+    @SuppressWarnings("removal")
+    private Thread newConsumerThread() {
+        return java.security.AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+            final Thread thread = new Thread(this::consume, "groovy-memory-limiter-infringements");
+            thread.setDaemon(true);
+            thread.setContextClassLoader(InfringementDispatcher.class.getClassLoader());
+            return thread;
+        });
+    }
+
+    private void consume() {
+        while (true) {
+            final Pending pending = queue.poll();
+            if (pending == null) {
+                if (shutdown) {
+                    return;
+                }
+                LockSupport.parkNanos(this, IDLE_NANOS);
+                continue;
+            }
+            pendingEvents.remove(pending.key, pending);
+            final InfringementEvent event = pending.close();
+            try {
+                pending.handler.accept(event);
+                delivered.incrementAndGet();
+            } catch (RuntimeException e) {
+                // a failing handler must not stop the delivery of other events
+                failed.incrementAndGet();
+            } catch (Error e) {
+                // errors end this thread, a new one handles the events left
+                consumer = null;
+                started.set(false);
+                if (!queue.isEmpty()) {
+                    startOrWakeUp();
+                }
+                throw e;
+            } finally {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Identifies the events that can be coalesced: same checker instance and same kind. Each checker keeps its keys,
+     * see {@link MemoryQuotaCheck#dispatchKey(InfringementEvent.Kind)}.
+     */
+    static final class Key {
+
+        private final MemoryQuotaCheck memoryQuotaCheck;
+        private final InfringementEvent.Kind kind;
+
+        Key(MemoryQuotaCheck memoryQuotaCheck, InfringementEvent.Kind kind) {
+            this.memoryQuotaCheck = memoryQuotaCheck;
+            this.kind = kind;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return memoryQuotaCheck == other.memoryQuotaCheck && kind == other.kind;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(memoryQuotaCheck) + kind.hashCode();
+        }
+    }
+
+    /**
+     * A queued event, still open to coalescing until the consumer closes it
+     */
+    private static final class Pending {
+
+        private final Key key;
+        private final long limit;
+        private final Consumer<InfringementEvent> handler;
+        private final long threadId;
+        private final long firstTime = System.currentTimeMillis();
+        private final AtomicLong usage;
+        /* Coalesced infringements, negative once closed */
+        private final AtomicLong count = new AtomicLong(1L);
+
+        private Pending(Key key, long usage, long limit, Consumer<InfringementEvent> handler, long threadId) {
+            this.key = key;
+            this.usage = new AtomicLong(usage);
+            this.limit = limit;
+            this.handler = handler;
+            this.threadId = threadId;
+        }
+
+        /**
+         * @return false if the event was already closed and a new one must be queued
+         */
+        private boolean merge(long usage) {
+            this.usage.accumulateAndGet(usage, Math::max);
+            while (true) {
+                final long current = count.get();
+                if (current < 0L) {
+                    return false;
+                }
+                if (count.compareAndSet(current, current + 1L)) {
+                    return true;
+                }
+            }
+        }
+
+        private InfringementEvent close() {
+            final long coalesced = count.getAndSet(-1L);
+            return new InfringementEvent(
+                key.memoryQuotaCheck, key.kind, usage.get(), limit, coalesced, firstTime, threadId);
+        }
+    }
+}
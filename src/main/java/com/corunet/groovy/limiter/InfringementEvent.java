@@ -0,0 +1,112 @@
+package com.corunet.groovy.limiter;
+
+/**
+ * A quota infringement delivered to an asynchronous handler, see {@link InfringementDispatcher}.
+ *
+ * Repeated infringements of the same kind by the same checker, published while the first one is still waiting in the
+ * queue, are coalesced into a single event: {@link #getCount()} tells how many there were, and {@link #getUsage()}
+ * reports the highest usage among them.
+ */
+public final class InfringementEvent {
+
+    /**
+     * Quota that was infringed
+     */
+    public enum Kind {
+        /** Allocated heap memory, see {@link MemoryQuotaCheck#getLimit()} */
+        MEMORY,
+        /** Direct and mapped buffers, see {@link MemoryQuotaCheck#getOffHeapLimit()} */
+        OFF_HEAP
+    }
+
+    private final MemoryQuotaCheck memoryQuotaCheck;
+    private final Kind kind;
+    private final long usage;
+    private final long limit;
+    private final long count;
+    private final long firstTime;
+    private final long threadId;
+
+    InfringementEvent(
+        MemoryQuotaCheck memoryQuotaCheck, Kind kind, long usage, long limit, long count, long firstTime, long threadId
+    ) {
+        this.memoryQuotaCheck = memoryQuotaCheck;
+        this.kind = kind;
+        this.usage = usage;
+        this.limit = limit;
+        this.count = count;
+        this.firstTime = firstTime;
+        this.threadId = threadId;
+    }
+
+    /**
+     * The checker whose quota was infringed. Its stats keep being updated by the script thread while the event is
+     * handled, the values of the event itself are the ones seen when it was published.
+     *
+     * @return the checker whose quota was infringed
+     */
+    public MemoryQuotaCheck getMemoryQuotaCheck() {
+        return memoryQuotaCheck;
+    }
+
+    /**
+     * @return the quota that was infringed
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the highest usage in bytes among the coalesced infringements
+     */
+    public long getUsage() {
+        return usage;
+    }
+
+    /**
+     * @return the limit in bytes when the event was published
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return number of coalesced infringements, at least one
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return time of the first coalesced infringement, in milliseconds since the epoch
+     */
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    /**
+     * @return id of the script thread
+     */
+    public long getThreadId() {
+        return threadId;
+    }
+
+    /**
+     * @return the guarded method or class, null for whole scripts
+     */
+    public String getScope() {
+        return memoryQuotaCheck.getScope();
+    }
+
+    @Override
+    public String toString() {
+        return "InfringementEvent{"
+            + "kind=" + kind
+            + ", usage=" + usage
+            + ", limit=" + limit
+            + ", count=" + count
+            + ", threadId=" + threadId
+            + ", scope=" + getScope()
+            + '}';
+    }
+}
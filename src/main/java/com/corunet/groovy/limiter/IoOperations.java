@@ -0,0 +1,336 @@
+package com.corunet.groovy.limiter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import groovy.lang.MetaClass;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Groovy I/O entry points that guarded scripts call instead of the Groovy JDK file and stream methods, like
+ * {@code file.text}, {@code readLines}, {@code eachLine}, {@code withInputStream}, {@code write} or {@code <<}. They
+ * charge the {@link IoQuotaCheck} of the {@link MemoryQuotaCheck} bound to the thread.
+ *
+ * When an I/O limit is set, {@link CheckMemoryQuotaASTTransformation} rewrites the calls whose receiver is declared as
+ * a file, path, URL, input stream or reader. Calls on variables of unknown type are rewritten to test the receiver at
+ * run time: they reach these methods when it's one of those classes, and keep their original call site otherwise. Calls
+ * passing closures can't be duplicated that way, so they keep their call site and are bracketed by
+ * {@link #before(Object, String)} and {@link #after(Object, String, Object, Object)} instead. No metaclass is changed.
+ *
+ * Whole file reads are charged the file size before reading, so a handler can stop them before the data reaches the
+ * heap. Reads from URLs, streams and readers are charged the size of what they return. File writes are charged the
+ * size of the written text or bytes beforehand when it's known, and the file growth afterwards otherwise. Streams
+ * opened with {@code newInputStream}, {@code newWriter} and the like are not charged.
+ */
+public final class IoOperations {
+
+    /* File and Path methods reading the whole file */
+    private static final Set<String> FILE_READS = names(
+        "getText", "readLines", "eachLine", "splitEachLine", "filterLine", "getBytes", "readBytes", "eachByte",
+        "eachObject", "withInputStream", "withReader", "withDataInputStream", "withObjectInputStream"
+    );
+    /* URL, InputStream and Reader methods returning the whole content */
+    private static final Set<String> SOURCE_READS = names("getText", "readLines", "getBytes");
+    /* File and Path methods replacing the file contents */
+    private static final Set<String> TRUNCATING_WRITES = names(
+        "write", "setText", "setBytes",
+        "withWriter", "withOutputStream", "withPrintWriter", "withDataOutputStream", "withObjectOutputStream"
+    );
+    /* File and Path methods adding to the file contents */
+    private static final Set<String> APPENDING_WRITES = names("append", "leftShift", "withWriterAppend");
+    /* Writes whose first argument is the written data */
+    private static final Set<String> DATA_WRITES = names("write", "setText", "setBytes", "append", "leftShift");
+    /* Every intercepted method */
+    private static final Set<String> METHODS = union(FILE_READS, SOURCE_READS, TRUNCATING_WRITES, APPENDING_WRITES);
+    /* Every intercepted property */
+    private static final Set<String> PROPERTIES = names("text", "bytes");
+
+    private IoOperations() {
+    }
+
+    /**
+     * @param method a method name
+     * @return true if calls to this method are rewritten to {@link #invoke(Object, String, Object[])}
+     */
+    static boolean isInterceptedMethod(String method) {
+        return METHODS.contains(method);
+    }
+
+    /**
+     * @param property a property name
+     * @return true if reading or writing this property is rewritten to {@link #getProperty(Object, String)} or
+     * {@link #setProperty(Object, String, Object)}
+     */
+    static boolean isInterceptedProperty(String property) {
+        return PROPERTIES.contains(property);
+    }
+
+    /**
+     * @param receiver an object
+     * @return true if the Groovy I/O calls made on the object are charged
+     */
+    public static boolean isCharged(Object receiver) {
+        return receiver instanceof File || receiver instanceof Path || isSource(receiver);
+    }
+
+    /**
+     * Charges and invokes a method
+     *
+     * @param receiver the object whose method was called
+     * @param method the method name
+     * @param arguments the call arguments
+     * @return whatever the method returned
+     */
+    public static Object invoke(Object receiver, String method, Object[] arguments) {
+        if (!isCharged(receiver)) {
+            return InvokerHelper.invokeMethod(receiver, method, arguments);
+        }
+        return invoke(InvokerHelper.getMetaClass(receiver), receiver, method, arguments);
+    }
+
+    /**
+     * Charges what can be charged before a call left on its original call site: file reads are charged the file size
+     *
+     * @param receiver the object whose method is called
+     * @param method the method name
+     * @return the file size before a file write, null otherwise
+     */
+    public static Object before(Object receiver, String method) {
+        final MemoryQuotaCheck bound = current();
+        if (bound == null || !(receiver instanceof File || receiver instanceof Path)) {
+            return null;
+        }
+        if (FILE_READS.contains(method)) {
+            chargeRead(bound, size(receiver));
+            return null;
+        }
+        return TRUNCATING_WRITES.contains(method) || APPENDING_WRITES.contains(method) ? size(receiver) : null;
+    }
+
+    /**
+     * Charges what is left after a call left on its original call site: file writes are charged the file growth, or
+     * the file size when they replace its contents, and reads from URLs, streams and readers the size of what they
+     * returned
+     *
+     * @param receiver the object whose method was called
+     * @param method the method name
+     * @param before what {@link #before(Object, String)} returned
+     * @param result what the call returned
+     * @return the result
+     */
+    public static Object after(Object receiver, String method, Object before, Object result) {
+        final MemoryQuotaCheck bound = current();
+        if (bound == null) {
+            return result;
+        }
+        if (before instanceof Long) {
+            final long after = size(receiver);
+            chargeWrite(bound, TRUNCATING_WRITES.contains(method) ? after : Math.max(0L, after - (Long) before));
+        } else if (isSource(receiver) && SOURCE_READS.contains(method)) {
+            chargeRead(bound, resultSize(result));
+        }
+        return result;
+    }
+
+    /**
+     * Charges and invokes a method through the given metaclass
+     */
+    private static Object invoke(MetaClass metaClass, Object receiver, String method, Object[] arguments) {
+        final MemoryQuotaCheck bound = current();
+        if (bound == null) {
+            return metaClass.invokeMethod(receiver, method, arguments);
+        }
+        if (receiver instanceof File || receiver instanceof Path) {
+            if (FILE_READS.contains(method)) {
+                chargeRead(bound, size(receiver));
+                return metaClass.invokeMethod(receiver, method, arguments);
+            }
+            final boolean truncating = TRUNCATING_WRITES.contains(method);
+            if (truncating || APPENDING_WRITES.contains(method)) {
+                final long written = DATA_WRITES.contains(method) && arguments.length > 0
+                    ? dataSize(arguments[0])
+                    : -1L;
+                if (written >= 0L) {
+                    chargeWrite(bound, written);
+                    return metaClass.invokeMethod(receiver, method, arguments);
+                }
+                final long before = size(receiver);
+                try {
+                    return metaClass.invokeMethod(receiver, method, arguments);
+                } finally {
+                    final long after = size(receiver);
+                    chargeWrite(bound, truncating ? after : Math.max(0L, after - before));
+                }
+            }
+        } else if (isSource(receiver) && SOURCE_READS.contains(method)) {
+            final Object result = metaClass.invokeMethod(receiver, method, arguments);
+            chargeRead(bound, resultSize(result));
+            return result;
+        }
+        return metaClass.invokeMethod(receiver, method, arguments);
+    }
+
+    /**
+     * Charges and reads a property
+     *
+     * @param receiver the object whose property was read
+     * @param property the property name
+     * @return the property value
+     */
+    public static Object getProperty(Object receiver, String property) {
+        if (!isCharged(receiver)) {
+            return InvokerHelper.getProperty(receiver, property);
+        }
+        return getProperty(InvokerHelper.getMetaClass(receiver), receiver, property);
+    }
+
+    /**
+     * Charges and reads a property through the given metaclass
+     */
+    private static Object getProperty(MetaClass metaClass, Object receiver, String property) {
+        return invoke(metaClass, receiver, "get" + capitalize(property), new Object[0]);
+    }
+
+    /**
+     * Charges and writes a property
+     *
+     * @param receiver the object whose property was written
+     * @param property the property name
+     * @param value the new value
+     * @return the new value, as an assignment does
+     */
+    public static Object setProperty(Object receiver, String property, Object value) {
+        if (!isCharged(receiver)) {
+            InvokerHelper.setProperty(receiver, property, value);
+        } else {
+            setProperty(InvokerHelper.getMetaClass(receiver), receiver, property, value);
+        }
+        return value;
+    }
+
+    /**
+     * Charges and writes a property through the given metaclass
+     */
+    private static void setProperty(MetaClass metaClass, Object receiver, String property, Object value) {
+        if (receiver instanceof File || receiver instanceof Path) {
+            invoke(metaClass, receiver, "set" + capitalize(property), new Object[]{value});
+        } else {
+            metaClass.setProperty(receiver, property, value);
+        }
+    }
+
+    /**
+     * Charges and evaluates a left shift, appending to files and paths
+     *
+     * @param left the left operand
+     * @param right the right operand
+     * @return the result of the operator
+     */
+    public static Object leftShift(Object left, Object right) {
+        if (left instanceof File || left instanceof Path) {
+            return invoke(InvokerHelper.getMetaClass(left), left, "leftShift", new Object[]{right});
+        }
+        return InvokerHelper.invokeMethod(left, "leftShift", new Object[]{right});
+    }
+
+    /**
+     * @return the checker bound to the thread if it or any checker it's nested in charges I/O, null otherwise
+     */
+    private static MemoryQuotaCheck current() {
+        final MemoryQuotaCheck bound = ThreadBoundQuotaCheck.current();
+        for (MemoryQuotaCheck memoryQuotaCheck = bound; memoryQuotaCheck != null;
+             memoryQuotaCheck = memoryQuotaCheck.getParent()) {
+            if (memoryQuotaCheck.getIoQuotaCheck() != null) {
+                return bound;
+            }
+        }
+        return null;
+    }
+
+    private static void chargeRead(MemoryQuotaCheck bound, long bytes) {
+        // nested checkers charge the ones they are nested in
+        for (MemoryQuotaCheck memoryQuotaCheck = bound; memoryQuotaCheck != null;
+             memoryQuotaCheck = memoryQuotaCheck.getParent()) {
+            if (memoryQuotaCheck.getIoQuotaCheck() != null) {
+                memoryQuotaCheck.getIoQuotaCheck().chargeRead(bytes);
+            }
+        }
+    }
+
+    private static void chargeWrite(MemoryQuotaCheck bound, long bytes) {
+        for (MemoryQuotaCheck memoryQuotaCheck = bound; memoryQuotaCheck != null;
+             memoryQuotaCheck = memoryQuotaCheck.getParent()) {
+            if (memoryQuotaCheck.getIoQuotaCheck() != null) {
+                memoryQuotaCheck.getIoQuotaCheck().chargeWrite(bytes);
+            }
+        }
+    }
+
+    private static boolean isSource(Object receiver) {
+        return receiver instanceof URL || receiver instanceof InputStream || receiver instanceof Reader;
+    }
+
+    private static long size(Object file) {
+        if (file instanceof File) {
+            return ((File) file).length();
+        }
+        try {
+            return Files.size((Path) file);
+        } catch (IOException e) {
+            // missing or unreadable, reading it will fail on its own
+            return 0L;
+        }
+    }
+
+    /**
+     * @return the size of written data or -1 if it's not known before writing
+     */
+    private static long dataSize(Object data) {
+        if (data instanceof CharSequence) {
+            return ((CharSequence) data).length();
+        }
+        if (data instanceof byte[]) {
+            return ((byte[]) data).length;
+        }
+        return -1L;
+    }
+
+    private static long resultSize(Object result) {
+        if (result instanceof Collection) {
+            // lines, each one with its separator
+            long size = 0L;
+            for (Object line : (Collection<?>) result) {
+                size += Math.max(0L, dataSize(line)) + 1L;
+            }
+            return size;
+        }
+        return Math.max(0L, dataSize(result));
+    }
+
+    private static String capitalize(String property) {
+        return Character.toUpperCase(property.charAt(0)) + property.substring(1);
+    }
+
+    private static Set<String> names(String... names) {
+        return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(names)));
+    }
+
+    @SafeVarargs
+    private static Set<String> union(Set<String>... sets) {
+        final Set<String> union = new HashSet<>();
+        for (Set<String> set : sets) {
+            union.addAll(set);
+        }
+        return Collections.unmodifiableSet(union);
+    }
+}
@@ -0,0 +1,161 @@
+package com.corunet.groovy.limiter;
+
+import java.util.function.Consumer;
+
+/**
+ * I/O budget of a Groovy script, charged with the bytes read and written through the Groovy I/O calls rewritten by
+ * {@link CheckMemoryQuotaASTTransformation}, see {@link IoOperations}.
+ *
+ * It's reached through the {@link MemoryQuotaCheck} bound to the thread, but has its own limit, handler and stats.
+ */
+public class IoQuotaCheck {
+
+    /* Desired I/O limit */
+    private long limit = Long.MAX_VALUE;
+    /* Infringement handler */
+    private Consumer<IoQuotaCheck> handler;
+    /* Bytes charged by reads */
+    private long bytesRead = 0L;
+    /* Bytes charged by writes */
+    private long bytesWritten = 0L;
+    /* Charged read operations */
+    private long reads = 0L;
+    /* Charged write operations */
+    private long writes = 0L;
+
+    /**
+     * Creates an I/O accounting without limit, it only updates stats
+     */
+    public IoQuotaCheck() {
+    }
+
+    /**
+     * Creates an I/O accounting with the given limit
+     *
+     * @param limit I/O limit in bytes
+     * @throws IllegalArgumentException when the provided number is not positive
+     */
+    public IoQuotaCheck(long limit) {
+        setLimit(limit);
+    }
+
+    /**
+     * @return the current handler used in case of quota infringement
+     */
+    public Consumer<IoQuotaCheck> getHandler() {
+        return handler;
+    }
+
+    /**
+     * Allows setting a handler that will be executed every time a charge leaves the script over its I/O limit. As
+     * reads are charged before they happen when their size is known, a handler throwing any {@link RuntimeException}
+     * or {@link Error} stops the script before the data is read.
+     *
+     * @param handler the method used to handle I/O quota infringements
+     */
+    public void setHandler(Consumer<IoQuotaCheck> handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Allows setting a handler as a Class + method name reference to a static method accepting an
+     * {@link IoQuotaCheck}.
+     *
+     * @param clazz the class holding the static method to handle I/O quota infringements
+     * @param method the name of the method to be called
+     * @throws NoSuchMethodException if the method doesn't exist
+     */
+    public void setHandler(Class<?> clazz, String method) throws NoSuchMethodException {
+        this.setHandler(MemoryQuotaCheck.methodToConsumer(clazz, method, IoQuotaCheck.class));
+    }
+
+    /**
+     * @return the I/O limit in bytes
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Defines the I/O quota, this will fail if the provided value is not positive
+     *
+     * @param limit I/O limit in bytes
+     * @throws IllegalArgumentException when the provided number is not positive
+     */
+    public void setLimit(long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("I/O limit should be a positive number but it was " + limit);
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * @return bytes charged by reads
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return bytes charged by writes
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return bytes charged by reads and writes, the amount compared with the limit
+     */
+    public long getBytesTransferred() {
+        return bytesRead + bytesWritten;
+    }
+
+    /**
+     * @return charged read operations
+     */
+    public long getReads() {
+        return reads;
+    }
+
+    /**
+     * @return charged write operations
+     */
+    public long getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return true if the charged bytes are over the limit
+     */
+    public boolean isExceeded() {
+        return getBytesTransferred() > limit;
+    }
+
+    /**
+     * Charges a read, executes infringement handler if the limit is exceeded
+     *
+     * @param bytes bytes read or about to be read
+     */
+    public void chargeRead(long bytes) {
+        bytesRead += bytes;
+        reads += 1;
+        checkLimit();
+    }
+
+    /**
+     * Charges a write, executes infringement handler if the limit is exceeded
+     *
+     * @param bytes bytes written or about to be written
+     */
+    public void chargeWrite(long bytes) {
+        bytesWritten += bytes;
+        writes += 1;
+        checkLimit();
+    }
+
+    private void checkLimit() {
+        if (handler != null && isExceeded()) {
+            handler.accept(this);
+        }
+    }
+}
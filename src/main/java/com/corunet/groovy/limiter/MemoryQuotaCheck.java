@@ -1,7 +1,11 @@
 package com.corunet.groovy.limiter;
 
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Consumer;
 
 import javax.validation.constraints.NotNull;
@@ -17,6 +21,41 @@ import groovy.lang.Binding;
 public class MemoryQuotaCheck {
 
     public static final String CHECKER_FIELD = "$$memoryQuotaCheck";
+    /** Binding variable holding the {@link Mode} a guarded script's checker starts in, FULL if it's not set */
+    public static final String MODE_VARIABLE = "$$memoryQuotaMode";
+
+    /* Handlers made by methodToConsumer, by handler class and then by method name and argument type. Held by the
+     * class itself, so they don't keep script classes from being unloaded. */
+    private static final ClassValue<ConcurrentMap<String, Consumer<?>>> HANDLERS =
+        new ClassValue<ConcurrentMap<String, Consumer<?>>>() {
+            @Override
+            protected ConcurrentMap<String, Consumer<?>> computeValue(Class<?> type) {
+                return new ConcurrentHashMap<>();
+            }
+        };
+
+    /**
+     * What a check does
+     */
+    public enum Mode {
+        /** Measures, updates stats and invokes the handler on infringements */
+        FULL,
+        /** Measures and updates stats only */
+        STATS_ONLY,
+        /** Does nothing, not even measuring */
+        OFF
+    }
+
+    /**
+     * How allocated memory is attributed to the script, chosen by the thread running it
+     */
+    public enum Accounting {
+        /** Allocations of the script's platform thread */
+        THREAD,
+        /** Allocations of the carriers of the script's virtual thread while it's mounted, see CarrierAllocation */
+        CARRIER
+    }
+
     /* ThreadMXBean used to enforce memory quota */
     private final ThreadMXBean threadMXBean;
     /* Thread ID whose memory usage will be checked */
@@ -29,8 +68,19 @@ public class MemoryQuotaCheck {
     private long maximum = 0L;
     /* Infringement handler */
     private Consumer<MemoryQuotaCheck> handler;
-    /* Checking enabled */
-    private boolean enabled = true;
+    /* Asynchronous infringement handler */
+    private Consumer<InfringementEvent> asyncHandler;
+    /* Delivers events to the asynchronous handler, the default one if null */
+    private InfringementDispatcher dispatcher;
+    /* Coalescing keys of this checker's events by kind, created on the first infringement of each kind */
+    private final InfringementDispatcher.Key[] dispatchKeys =
+        new InfringementDispatcher.Key[InfringementEvent.Kind.values().length];
+    /* Checking mode */
+    private Mode mode = Mode.FULL;
+    /* Allocation accounting, set by init() */
+    private Accounting accounting = Accounting.THREAD;
+    /* Carrier allocation of a script running on a virtual thread */
+    private CarrierAllocation carrierAllocation;
 
     /* Average memory consumption */
     private long average = 0L;
@@ -38,6 +88,22 @@ public class MemoryQuotaCheck {
     private long checks = 0L;
     /* Groovy script binding */
     private Binding scriptBinding;
+    /* Class loader generation of the script, null if it wasn't compiled by a ScriptClassLoaderManager */
+    private ScriptClassLoaderManager.Generation generation;
+    /* Optional allocation timeline */
+    private AllocationTimeline timeline;
+    /* Checker bound to the thread before this one was */
+    private MemoryQuotaCheck previousBound;
+    /* Desired off-heap memory limit */
+    private long offHeapLimit = Long.MAX_VALUE;
+    /* Direct and mapped buffer bytes charged to this checker */
+    private long offHeapUsage = 0L;
+    /* JVM wide direct and mapped buffer usage when the script started */
+    private long offHeapPoolBase = 0L;
+    /* Optional I/O accounting */
+    private IoQuotaCheck ioQuotaCheck;
+    /* Guarded method or class, null for whole scripts */
+    private String scope;
 
     /**
      * Creates a MemoryCheck that uses the given ThreadMXBean to watch a given thread's memory consumption
@@ -49,15 +115,33 @@ public class MemoryQuotaCheck {
     }
 
     /**
-     * Utility method to make a handler from an static method referenced by class and method name
+     * Utility method to make a handler from an static method referenced by class and method name. The method is looked
+     * up once per class, as guarded methods set their handler on every call.
      *
      * @param clazz the class that holds the method
      * @param methodName the name of the method
-     * @return a LongConsumer that can be used as a handler
+     * @param argumentType the type of the method's only parameter
+     * @return a Consumer that can be used as a handler
      */
-    private static Consumer<MemoryQuotaCheck> methodToConsumer(Class<?> clazz, String methodName)
+    @SuppressWarnings("unchecked")
+    static <T> Consumer<T> methodToConsumer(Class<?> clazz, String methodName, Class<T> argumentType)
         throws NoSuchMethodException {
-        Method handler = clazz.getMethod(methodName, MemoryQuotaCheck.class);
+        final ConcurrentMap<String, Consumer<?>> handlers = HANDLERS.get(clazz);
+        final String key = methodName + '(' + argumentType.getName() + ')';
+        Consumer<?> consumer = handlers.get(key);
+        if (consumer == null) {
+            consumer = resolveHandler(clazz, methodName, argumentType);
+            final Consumer<?> raced = handlers.putIfAbsent(key, consumer);
+            if (raced != null) {
+                consumer = raced;
+            }
+        }
+        return (Consumer<T>) consumer;
+    }
+
+    private static <T> Consumer<T> resolveHandler(Class<?> clazz, String methodName, Class<T> argumentType)
+        throws NoSuchMethodException {
+        Method handler = clazz.getMethod(methodName, argumentType);
         return value -> {
             try {
                 // This is a static method call, the first parameter should
@@ -115,7 +199,65 @@ public class MemoryQuotaCheck {
      * @throws NoSuchMethodException if the method doesn't exist
      */
     public void setHandler(Class<?> clazz, String method) throws NoSuchMethodException {
-        this.setHandler(methodToConsumer(clazz, method));
+        this.setHandler(methodToConsumer(clazz, method, MemoryQuotaCheck.class));
+    }
+
+    /**
+     * @return the asynchronous handler notified of quota infringements, or null
+     */
+    public Consumer<InfringementEvent> getAsyncHandler() {
+        return asyncHandler;
+    }
+
+    /**
+     * Allows setting a handler that will be notified of quota infringements on a dedicated thread, see
+     * {@link InfringementDispatcher}. Meant for handlers that only log, alert or record metrics: they don't delay the
+     * script, and they can't stop it either. It can be combined with a synchronous handler.
+     *
+     * @param asyncHandler the method used to handle memory quota infringements asynchronously
+     */
+    public void setAsyncHandler(Consumer<InfringementEvent> asyncHandler) {
+        this.asyncHandler = asyncHandler;
+    }
+
+    /**
+     * Allows setting an asynchronous handler as a Class + method name reference to a static method accepting an
+     * {@link InfringementEvent}.
+     *
+     * @param clazz the class holding the static method to handle memory quota infringements
+     * @param method the name of the method to be called
+     * @throws NoSuchMethodException if the method doesn't exist
+     */
+    public void setAsyncHandler(Class<?> clazz, String method) throws NoSuchMethodException {
+        this.setAsyncHandler(methodToConsumer(clazz, method, InfringementEvent.class));
+    }
+
+    /**
+     * @return the dispatcher delivering events to the asynchronous handler
+     */
+    public InfringementDispatcher getDispatcher() {
+        return dispatcher != null ? dispatcher : InfringementDispatcher.getDefault();
+    }
+
+    /**
+     * @param dispatcher the dispatcher delivering events to the asynchronous handler, null for the default one
+     */
+    public void setDispatcher(InfringementDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @param kind the quota that was infringed
+     * @return the key coalescing this checker's events of the given kind
+     */
+    InfringementDispatcher.Key dispatchKey(InfringementEvent.Kind kind) {
+        InfringementDispatcher.Key key = dispatchKeys[kind.ordinal()];
+        if (key == null) {
+            // a race only creates an equal key
+            key = new InfringementDispatcher.Key(this, kind);
+            dispatchKeys[kind.ordinal()] = key;
+        }
+        return key;
     }
 
     /**
@@ -157,16 +299,64 @@ public class MemoryQuotaCheck {
         this.baseUsage = baseUsage;
     }
 
+    /**
+     * Sets the binding of the guarded script. If it holds a {@link Mode} under {@link #MODE_VARIABLE}, the checker
+     * switches to it, so a host can run trusted scripts with checks off without recompiling them.
+     *
+     * @param scriptBinding binding of the script
+     */
     public void setScriptBinding(Binding scriptBinding) {
         this.scriptBinding = scriptBinding;
+        if (scriptBinding != null && scriptBinding.hasVariable(MODE_VARIABLE)) {
+            setMode((Mode) scriptBinding.getVariable(MODE_VARIABLE));
+        }
+    }
+
+    /**
+     * Links this checker to the {@link ScriptClassLoaderManager} generation that compiled the script, if any
+     *
+     * @param scriptClass class of the guarded script
+     */
+    public void setScriptClass(Class<?> scriptClass) {
+        this.generation = ScriptClassLoaderManager.generationOf(scriptClass.getClassLoader());
+    }
+
+    /**
+     * @return the class loader generation that compiled the script, with its loaded classes and metaspace, or null if
+     * the script wasn't compiled by a {@link ScriptClassLoaderManager}
+     */
+    public ScriptClassLoaderManager.Generation getGeneration() {
+        return generation;
     }
 
     /**
      * Stores current memory usage to base memory usage as reported by {@link ThreadMXBean#getThreadAllocatedBytes(long
-     * threadId)} for the thread that this MemoryQuotaCheck watches.
+     * threadId)} for the thread that this MemoryQuotaCheck watches. With {@link Accounting#CARRIER} it must be called
+     * from the script thread.
      */
     public void recordBaseUsage() {
-        this.baseUsage = this.threadMXBean.getThreadAllocatedBytes(this.threadId);
+        this.baseUsage = allocatedBytes();
+    }
+
+    /**
+     * @return how allocated memory is attributed to the script
+     */
+    public Accounting getAccounting() {
+        return accounting;
+    }
+
+    /**
+     * @return with {@link Accounting#CARRIER}, the count of check point windows whose allocation couldn't be charged
+     * because the limiter didn't see the script thread being mounted, 0 otherwise
+     */
+    public long getLostWindows() {
+        return carrierAllocation != null ? carrierAllocation.getLostWindows() : 0L;
+    }
+
+    private long allocatedBytes() {
+        return carrierAllocation != null
+            ? carrierAllocation.allocatedBytes()
+            : threadMXBean.getThreadAllocatedBytes(threadId);
     }
 
     /**
@@ -218,12 +408,29 @@ public class MemoryQuotaCheck {
         return this.scriptBinding;
     }
 
+    /**
+     * @return the allocation timeline recorded by this checker or null if none was set
+     */
+    public AllocationTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Sets a timeline that will receive a (nanoTime, allocatedBytes) sample on every check. It is available to the
+     * infringement handler and after the script finishes, so the shape of the run can be reviewed.
+     *
+     * @param timeline the timeline to record into or null to stop recording
+     */
+    public void setTimeline(AllocationTimeline timeline) {
+        this.timeline = timeline;
+    }
+
     /**
      * Tells you if memory checking is enabled.
      * @return true if memory checking is enabled, false otherwise
      */
     public boolean isEnabled() {
-        return enabled;
+        return mode == Mode.FULL;
     }
 
     /**
@@ -234,7 +441,25 @@ public class MemoryQuotaCheck {
      * @param enabled a boolean to represent if memory checks are being carried out
      */
     public void setEnabled(boolean enabled) {
-        this.enabled = enabled;
+        this.mode = enabled ? Mode.FULL : Mode.STATS_ONLY;
+    }
+
+    /**
+     * @return what checks currently do
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Defines what checks do. {@link Mode#OFF} turns every check into a field read, so trusted scripts compiled with
+     * the limiter run at almost full speed. The check sites of scripts and instrumented classes relink to the new mode
+     * the next time they check this checker, see {@link QuotaCheckSites}.
+     *
+     * @param mode the new checking mode
+     */
+    public void setMode(@NotNull Mode mode) {
+        this.mode = mode;
     }
 
     private void updateStats(long current) {
@@ -251,27 +476,259 @@ public class MemoryQuotaCheck {
     }
 
     /**
-     * Check the thread's memory usage, executes infringement handler if defined.
+     * Check the thread's memory usage, executes infringement handler if defined. The checker this one is nested in is
+     * checked too.
      */
     void check() {
+        checkChain(true);
+    }
+
+    private void infringed(InfringementEvent.Kind kind, long usage, long limit) {
+        // published first, the synchronous handler may stop the script
+        if (asyncHandler != null) {
+            getDispatcher().publish(this, kind, usage, limit, asyncHandler);
+        }
+        if (handler != null) {
+            handler.accept(this);
+        }
+    }
+
+    /**
+     * Check made by a site linked to this checker while it's {@link Mode#OFF}: only the checkers it's nested in, if
+     * any, are checked.
+     */
+    void checkNesting() {
+        if (previousBound != null) {
+            previousBound.check();
+        }
+    }
+
+    /**
+     * Check the thread's memory usage only updating stats, even if the handler is enabled.
+     */
+    void checkStats() {
+        checkChain(false);
+    }
+
+    /**
+     * Checks this checker and the ones it's nested in, innermost first. The allocated bytes are read once and each
+     * checker subtracts its own base usage, unless it measures another counter.
+     */
+    private void checkChain(boolean handle) {
+        MemoryQuotaCheck measured = null;
+        long allocated = 0L;
+        for (MemoryQuotaCheck checker = this; checker != null; checker = checker.previousBound) {
+            if (checker.mode == Mode.OFF) {
+                continue;
+            }
+            if (measured == null || !checker.sharesCounter(measured)) {
+                allocated = checker.measuredBytes();
+                measured = checker;
+            }
+            final long current = checker.measure(allocated);
+
+            if (handle && checker.mode == Mode.FULL && current > checker.limit) {
+                checker.infringed(InfringementEvent.Kind.MEMORY, current, checker.limit);
+            }
+        }
+    }
+
+    /**
+     * @return true if both checkers read the same thread counter, carrier accounting keeps a counter per checker
+     */
+    private boolean sharesCounter(MemoryQuotaCheck other) {
+        return carrierAllocation == null && other.carrierAllocation == null
+            && threadId == other.threadId && threadMXBean == other.threadMXBean;
+    }
+
+    private long measuredBytes() {
         if (threadId == 0L) {
             throw new IllegalStateException("Invalid thread id for memory quota check");
         }
-        final long current = threadMXBean.getThreadAllocatedBytes(threadId) - baseUsage;
+        return allocatedBytes();
+    }
+
+    private long measure(long allocated) {
+        final long current = allocated - baseUsage;
 
         updateStats(current);
 
-        if (enabled && handler != null && (current) > limit) {
-            handler.accept(this);
+        if (timeline != null) {
+            timeline.record(System.nanoTime(), current);
+        }
+        return current;
+    }
+
+    /**
+     * @return the off-heap memory limit in bytes
+     */
+    public long getOffHeapLimit() {
+        return offHeapLimit;
+    }
+
+    /**
+     * Defines the quota for direct and mapped buffers allocated by the script, this will fail if the provided value is
+     * not positive. Only allocations rewritten by the transformation, see {@link OffHeapAllocations}, are charged.
+     * The quota limits cumulative allocation as the heap one does: buffers released or left unreachable are not
+     * credited back, so scripts should reuse their buffers instead of allocating new ones.
+     *
+     * @param offHeapLimit off-heap allocation limit in bytes
+     * @throws IllegalArgumentException when the provided number is not positive
+     */
+    public void setOffHeapLimit(long offHeapLimit) {
+        if (offHeapLimit < 0) {
+            throw new IllegalArgumentException(
+                "Off-heap memory limit should be a positive number but it was " + offHeapLimit);
+        }
+        this.offHeapLimit = offHeapLimit;
+    }
+
+    /**
+     * @return direct and mapped buffer bytes charged to this checker, including released buffers
+     */
+    public long getOffHeapUsage() {
+        return offHeapUsage;
+    }
+
+    /**
+     * @return true if the charged off-heap usage is over the off-heap limit
+     */
+    public boolean isOffHeapExceeded() {
+        return offHeapUsage > offHeapLimit;
+    }
+
+    /**
+     * Growth of the JVM wide direct and mapped buffer pools since {@link #recordOffHeapPoolBase()}, as reported by
+     * {@link BufferPoolMXBean}. It includes every thread's buffers and excludes released ones, so it can only be
+     * reconciled with {@link #getOffHeapUsage()} when scripts run alone.
+     *
+     * @return pool growth in bytes, negative if buffers were released
+     */
+    public long getOffHeapPoolGrowth() {
+        return offHeapPoolUsage() - offHeapPoolBase;
+    }
+
+    /**
+     * Stores the current JVM wide direct and mapped buffer usage as the base for {@link #getOffHeapPoolGrowth()}
+     */
+    public void recordOffHeapPoolBase() {
+        this.offHeapPoolBase = offHeapPoolUsage();
+    }
+
+    private static long offHeapPoolUsage() {
+        long used = 0L;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            used += Math.max(0L, pool.getMemoryUsed());
+        }
+        return used;
+    }
+
+    /**
+     * Charges an off-heap allocation about to happen, executes infringement handler if the off-heap limit is exceeded.
+     *
+     * @param bytes size of the allocation
+     */
+    void chargeOffHeap(long bytes) {
+        for (MemoryQuotaCheck checker = this; checker != null; checker = checker.previousBound) {
+            if (checker.mode != Mode.OFF) {
+                checker.offHeapUsage += bytes;
+
+                if (checker.mode == Mode.FULL && checker.offHeapUsage > checker.offHeapLimit) {
+                    checker.infringed(InfringementEvent.Kind.OFF_HEAP, checker.offHeapUsage, checker.offHeapLimit);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the I/O accounting of the script or null if its I/O is not charged
+     */
+    public IoQuotaCheck getIoQuotaCheck() {
+        return ioQuotaCheck;
+    }
+
+    /**
+     * Sets the I/O accounting charged by the Groovy I/O calls of the script while this checker is bound to its thread,
+     * see {@link IoOperations}.
+     *
+     * @param ioQuotaCheck the I/O accounting, null stops charging I/O
+     */
+    public void setIoQuotaCheck(IoQuotaCheck ioQuotaCheck) {
+        this.ioQuotaCheck = ioQuotaCheck;
+    }
+
+    /**
+     * @return the method or class guarded by this checker, null if it guards a whole script
+     */
+    public String getScope() {
+        return scope;
+    }
+
+    /**
+     * @param scope the method or class guarded by this checker, null if it guards a whole script
+     */
+    public void setScope(String scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * @return the checker this one is nested in, bound to the thread before this one, or null if there is none
+     */
+    public MemoryQuotaCheck getParent() {
+        return previousBound;
+    }
+
+    /**
+     * Binds this checker to the current thread, so instrumented code without a reference to it checks its quota. See
+     * {@link ThreadBoundQuotaCheck}.
+     */
+    public void bind() {
+        previousBound = ThreadBoundQuotaCheck.bind(this);
+    }
+
+    /**
+     * Restores the checker that was bound to the current thread before {@link #bind()} was called
+     */
+    public void unbind() {
+        ThreadBoundQuotaCheck.restore(previousBound);
+        previousBound = null;
+        if (carrierAllocation != null) {
+            carrierAllocation.close();
         }
     }
 
     /**
      * This is a convenience method to set this MemoryQuotaChecker's thrad id to the current threads id and base memory
-     * usage to the current thread's memory usage
+     * usage to the current thread's memory usage. On a virtual thread it switches to {@link Accounting#CARRIER}.
+     *
+     * @throws UnsupportedOperationException on a virtual thread if its carrier is not accessible
      */
     void init() {
-        threadId = Thread.currentThread().getId();
+        final Thread thread = Thread.currentThread();
+        threadId = thread.getId();
+        if (carrierAllocation != null) {
+            carrierAllocation.close();
+        }
+        if (CarrierAllocation.isVirtual(thread)) {
+            if (!CarrierAllocation.isSupported()) {
+                throw new UnsupportedOperationException("Allocated memory of virtual threads can only be checked with "
+                    + "java.lang open to the limiter, add --add-opens java.base/java.lang=ALL-UNNAMED");
+            }
+            carrierAllocation = new CarrierAllocation(threadMXBean);
+            accounting = Accounting.CARRIER;
+        } else {
+            carrierAllocation = null;
+            accounting = Accounting.THREAD;
+        }
         recordBaseUsage();
     }
+
+    /**
+     * Starts measuring from now on the current thread and binds this checker to it, nested in the checker bound
+     * before. Used by scoped checkers, see {@link ThreadBoundQuotaCheck#enter(String)}.
+     */
+    public void start() {
+        init();
+        bind();
+    }
 }
@@ -0,0 +1,53 @@
+package com.corunet.groovy.limiter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Off-heap allocation entry points that guarded scripts call instead of {@link ByteBuffer#allocateDirect(int)} and
+ * {@link FileChannel#map(FileChannel.MapMode, long, long)}. The calls are rewritten by
+ * {@link CheckMemoryQuotaASTTransformation} when an off-heap limit is set, and they charge the requested size to the
+ * {@link MemoryQuotaCheck} bound to the thread before allocating anything. Releasing a buffer credits nothing back,
+ * the quota limits cumulative allocation.
+ */
+public final class OffHeapAllocations {
+
+    private OffHeapAllocations() {
+    }
+
+    /**
+     * Charges and allocates a direct buffer
+     *
+     * @param capacity the new buffer's capacity in bytes
+     * @return the new buffer
+     */
+    public static ByteBuffer allocateDirect(int capacity) {
+        charge(capacity);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Charges and maps a region of a file channel
+     *
+     * @param channel the channel whose map method was called
+     * @param mode the map mode
+     * @param position position within the file
+     * @param size size of the region in bytes
+     * @return the mapped buffer
+     * @throws IOException if mapping fails
+     */
+    public static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long size)
+        throws IOException {
+        charge(size);
+        return channel.map(mode, position, size);
+    }
+
+    private static void charge(long bytes) {
+        final MemoryQuotaCheck memoryQuotaCheck = ThreadBoundQuotaCheck.current();
+        if (memoryQuotaCheck != null) {
+            memoryQuotaCheck.chargeOffHeap(bytes);
+        }
+    }
+}
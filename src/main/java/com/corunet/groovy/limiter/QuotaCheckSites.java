@@ -0,0 +1,199 @@
+package com.corunet.groovy.limiter;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.UndeclaredThrowableException;
+
+/**
+ * Links the invokedynamic check sites emitted by {@link CheckMemoryQuotaClassTransformer}, and the checks of scripts
+ * compiled by the {@link CheckMemoryQuota} transformation.
+ *
+ * Every site is linked to the {@link MemoryQuotaCheck.Mode} of the checker it checks, guarded by a test of that mode.
+ * When it meets a checker in another mode, because that checker's mode changed or because another script runs through
+ * the same code, the site relinks to the new mode. A site linked to {@link MemoryQuotaCheck.Mode#OFF} only reads the
+ * checker's mode and, for nested checkers, checks the ones around it, so the JIT compiles it down to a couple of field
+ * reads. One artifact can so run trusted and untrusted workloads side by side, each at the speed its checker's mode
+ * allows. A site that keeps meeting checkers in different modes stops relinking after {@value #MAX_RELINKS} times and
+ * dispatches on the mode on every call, which is what a checker does anyway.
+ *
+ * Groovy can't emit invokedynamic from an AST transformation, so guarded scripts call {@link #check()} and
+ * {@link #check(MemoryQuotaCheck)} instead, which invoke a constant handle to a {@link MutableCallSite} linked the same
+ * way. The JIT inlines its current target too.
+ */
+public final class QuotaCheckSites {
+
+    /* Internal name and bootstrap method used by instrumented bytecode */
+    static final String INTERNAL_NAME = "com/corunet/groovy/limiter/QuotaCheckSites";
+    static final String BOOTSTRAP_METHOD = "bootstrap";
+    static final String BOOTSTRAP_DESCRIPTOR = MethodType.methodType(
+        CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class
+    ).toMethodDescriptorString();
+
+    /* Times a site relinks before dispatching on every call */
+    private static final int MAX_RELINKS = 8;
+
+    private static final MethodType CHECK_TYPE = MethodType.methodType(void.class);
+    private static final MethodType CHECKER_TYPE = MethodType.methodType(void.class, MemoryQuotaCheck.class);
+    /* Checker bound to the current thread, may be null */
+    private static final MethodHandle BOUND;
+    /* Checks by mode of the checked checker */
+    private static final MethodHandle CHECK;
+    private static final MethodHandle CHECK_NESTING;
+    private static final MethodHandle SKIP;
+    private static final MethodHandle DISPATCH;
+    private static final MethodHandle HAS_MODE;
+    private static final MethodHandle RELINK;
+
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            BOUND = lookup.findStatic(ThreadBoundQuotaCheck.class, "current",
+                MethodType.methodType(MemoryQuotaCheck.class));
+            CHECK = lookup.findVirtual(MemoryQuotaCheck.class, "check", CHECK_TYPE);
+            CHECK_NESTING = lookup.findVirtual(MemoryQuotaCheck.class, "checkNesting", CHECK_TYPE);
+            SKIP = lookup.findStatic(QuotaCheckSites.class, "skip", CHECKER_TYPE);
+            DISPATCH = lookup.findStatic(QuotaCheckSites.class, "dispatch", CHECKER_TYPE);
+            HAS_MODE = lookup.findStatic(QuotaCheckSites.class, "hasMode",
+                MethodType.methodType(boolean.class, MemoryQuotaCheck.Mode.class, MemoryQuotaCheck.class));
+            RELINK = lookup.findStatic(QuotaCheckSites.class, "relink",
+                MethodType.methodType(void.class, ModeSite.class, MemoryQuotaCheck.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /* Sites called by guarded scripts, for scoped checkers and for the script's own checker */
+    private static final MutableCallSite SCRIPT_BOUND_SITE = new ModeSite(true);
+    private static final MutableCallSite SCRIPT_CHECKER_SITE = new ModeSite(false);
+    private static final MethodHandle SCRIPT_BOUND_CHECK = SCRIPT_BOUND_SITE.dynamicInvoker();
+    private static final MethodHandle SCRIPT_CHECKER_CHECK = SCRIPT_CHECKER_SITE.dynamicInvoker();
+
+    private QuotaCheckSites() {
+    }
+
+    /**
+     * Bootstrap method of the check sites
+     *
+     * @param lookup caller lookup, unused
+     * @param name site name, unused
+     * @param type site type, must be ()V
+     * @return the call site for an instrumented check
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type) {
+        if (!CHECK_TYPE.equals(type)) {
+            throw new IllegalArgumentException("Unexpected check site type " + type);
+        }
+        return new ModeSite(true);
+    }
+
+    /**
+     * Checks the quota of the checker bound to the current thread as its mode says. Called from scripts with scoped
+     * checkers.
+     */
+    public static void check() {
+        try {
+            SCRIPT_BOUND_CHECK.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    /**
+     * Checks the quota of the given checker as its mode says. Called from guarded scripts.
+     *
+     * @param memoryQuotaCheck the script's checker
+     */
+    public static void check(MemoryQuotaCheck memoryQuotaCheck) {
+        try {
+            SCRIPT_CHECKER_CHECK.invokeExact(memoryQuotaCheck);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    /**
+     * Called by a site whose guard failed, links it to the mode of the given checker and runs the check once
+     */
+    private static void relink(ModeSite site, MemoryQuotaCheck memoryQuotaCheck) {
+        final MethodHandle checkerTarget;
+        synchronized (site) {
+            site.relinks += 1;
+            checkerTarget = site.relinks > MAX_RELINKS ? DISPATCH : site.guard(modeOf(memoryQuotaCheck));
+            site.setTarget(site.bound ? MethodHandles.filterReturnValue(BOUND, checkerTarget) : checkerTarget);
+        }
+        dispatch(memoryQuotaCheck);
+    }
+
+    /**
+     * Check of a site that has given up relinking
+     */
+    private static void dispatch(MemoryQuotaCheck memoryQuotaCheck) {
+        if (memoryQuotaCheck != null) {
+            memoryQuotaCheck.check();
+        }
+    }
+
+    private static MemoryQuotaCheck.Mode modeOf(MemoryQuotaCheck memoryQuotaCheck) {
+        return memoryQuotaCheck != null ? memoryQuotaCheck.getMode() : null;
+    }
+
+    /**
+     * @return true if the checker is checked the way a site linked to the given mode checks: not at all when no
+     * checker is bound, only its nesting when it's off, and by the checker itself in the other two modes
+     */
+    @SuppressWarnings("unused")
+    private static boolean hasMode(MemoryQuotaCheck.Mode mode, MemoryQuotaCheck memoryQuotaCheck) {
+        final MemoryQuotaCheck.Mode current = modeOf(memoryQuotaCheck);
+        return current == mode || current != null && mode != null
+            && current != MemoryQuotaCheck.Mode.OFF && mode != MemoryQuotaCheck.Mode.OFF;
+    }
+
+    @SuppressWarnings("unused")
+    private static void skip(MemoryQuotaCheck memoryQuotaCheck) {
+        // no checker bound to the thread
+    }
+
+    /**
+     * A check site and the count of times it has been linked. Bound sites check the checker bound to the thread, the
+     * others the checker given as argument.
+     */
+    private static final class ModeSite extends MutableCallSite {
+
+        private final boolean bound;
+        /* Guarded by this */
+        private int relinks = 0;
+
+        private ModeSite(boolean bound) {
+            super(bound ? CHECK_TYPE : CHECKER_TYPE);
+            this.bound = bound;
+            final MethodHandle unlinked = MethodHandles.insertArguments(RELINK, 0, this);
+            setTarget(bound ? MethodHandles.filterReturnValue(BOUND, unlinked) : unlinked);
+        }
+
+        /**
+         * @param mode mode to link to, null when no checker is bound to the thread
+         * @return the check for checkers in the given mode, guarded by a test of the mode
+         */
+        private MethodHandle guard(MemoryQuotaCheck.Mode mode) {
+            final MethodHandle target;
+            if (mode == null) {
+                target = SKIP;
+            } else if (mode == MemoryQuotaCheck.Mode.OFF) {
+                target = CHECK_NESTING;
+            } else {
+                // a stats only checker skips its handler, but the checkers around it may still invoke theirs
+                target = CHECK;
+            }
+            return MethodHandles.guardWithTest(
+                MethodHandles.insertArguments(HAS_MODE, 0, mode), target,
+                MethodHandles.insertArguments(RELINK, 0, this));
+        }
+    }
+}
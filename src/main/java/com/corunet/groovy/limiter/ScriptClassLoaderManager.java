@@ -0,0 +1,454 @@
+package com.corunet.groovy.limiter;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.codehaus.groovy.reflection.ClassInfo;
+import org.codehaus.groovy.reflection.GroovyClassValue;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Compiles guarded scripts into disposable class loaders, so the classes of scripts that are no longer run can be
+ * unloaded and metaspace stays flat on long running nodes.
+ *
+ * Scripts are compiled by the current generation, a {@link GroovyClassLoader} shared by the leases taken while it's
+ * current, created by a loader factory such as {@link CompilationQuotaClassLoader}'s constructor. A generation is
+ * retired once it has handed out a given number of leases or reached a given age, and new leases go to a fresh one.
+ * Age is checked when leases are taken and closed, and by {@link #retireExpired()}, which nodes that may sit idle
+ * should call periodically. A retired generation is disposed when its last lease is closed: the metaclasses of its
+ * classes are removed from the Groovy registry, its class cache is cleared and the loader is closed, leaving its
+ * classes to the garbage collector as soon as the caller drops its scripts.
+ *
+ * Metaspace per generation is measured as the growth of the Metaspace pool while its scripts are compiled, so it's
+ * only approximate when many threads load classes at once. The stats of a generation are reachable from its leases and
+ * from the checkers of the scripts it compiled, see {@link MemoryQuotaCheck#getGeneration()}.
+ */
+public class ScriptClassLoaderManager {
+
+    /* Name of the memory pool holding class metadata */
+    private static final String METASPACE_POOL = "Metaspace";
+    /* Groovy's ClassInfo cache, which strongly references every class it has seen. Null if not accessible. */
+    private static final GroovyClassValue<ClassInfo> CLASS_INFO = findClassInfo();
+    /* Live generations by loader, for the checkers of their scripts */
+    private static final Map<ClassLoader, WeakReference<Generation>> GENERATIONS = new WeakHashMap<>();
+
+    /* Parent loader and configuration of every generation, and the factory of their loaders */
+    private final ClassLoader parent;
+    private final CompilerConfiguration config;
+    private final BiFunction<ClassLoader, CompilerConfiguration, ? extends GroovyClassLoader> loaderFactory;
+    /* Retirement triggers */
+    private final int maxUses;
+    private final long maxAgeNanos;
+    /* Memory pool of class metadata, null if the JVM has none */
+    private final MemoryPoolMXBean metaspace = findMetaspace();
+    /* Generation given to new leases */
+    private Generation current;
+    /* Retired generations with open leases */
+    private final List<Generation> retired = new ArrayList<>();
+    /* Stats */
+    private long generations = 0L;
+    private long disposed = 0L;
+    private long unloadedClasses = 0L;
+
+    /**
+     * Creates a manager whose generations are retired by use count or age, whichever comes first
+     *
+     * @param parent parent loader of the generations
+     * @param config compiler configuration of the generations, usually including the {@link CheckMemoryQuota}
+     * transformation
+     * @param maxUses leases handed out by a generation before it's retired
+     * @param maxAge age at which a generation is retired, checked when a lease is taken or closed and by
+     * {@link #retireExpired()}
+     * @param unit unit of the age
+     * @throws IllegalArgumentException when the use count or age is not positive
+     */
+    public ScriptClassLoaderManager(
+        ClassLoader parent, CompilerConfiguration config, int maxUses, long maxAge, TimeUnit unit
+    ) {
+        this(parent, config, maxUses, maxAge, unit, GroovyClassLoader::new);
+    }
+
+    /**
+     * Creates a manager whose generations are retired by use count or age, whichever comes first, and compile with
+     * loaders created by the given factory, for example {@link CompilationQuotaClassLoader}s capping each compilation
+     *
+     * @param parent parent loader of the generations
+     * @param config compiler configuration of the generations, usually including the {@link CheckMemoryQuota}
+     * transformation
+     * @param maxUses leases handed out by a generation before it's retired
+     * @param maxAge age at which a generation is retired, checked when a lease is taken or closed and by
+     * {@link #retireExpired()}
+     * @param unit unit of the age
+     * @param loaderFactory creates the loader of each generation from the parent loader and the configuration
+     * @throws IllegalArgumentException when the use count or age is not positive
+     */
+    public ScriptClassLoaderManager(
+        ClassLoader parent, CompilerConfiguration config, int maxUses, long maxAge, TimeUnit unit,
+        BiFunction<ClassLoader, CompilerConfiguration, ? extends GroovyClassLoader> loaderFactory
+    ) {
+        if (maxUses <= 0) {
+            throw new IllegalArgumentException("Maximum uses should be a positive number but it was " + maxUses);
+        }
+        if (maxAge <= 0) {
+            throw new IllegalArgumentException("Maximum age should be a positive number but it was " + maxAge);
+        }
+        this.parent = parent;
+        this.config = config;
+        this.loaderFactory = loaderFactory;
+        this.maxUses = maxUses;
+        this.maxAgeNanos = unit.toNanos(maxAge);
+    }
+
+    /**
+     * Takes a lease on the current generation, retiring it first if it's used up or too old.
+     *
+     * @return the lease, which must be closed once its scripts are no longer run
+     */
+    public synchronized Lease lease() {
+        if (current != null && current.uses >= maxUses) {
+            retire();
+        } else {
+            retireExpired();
+        }
+        if (current == null) {
+            current = new Generation(loaderFactory.apply(parent, config));
+            generations += 1;
+            synchronized (GENERATIONS) {
+                GENERATIONS.put(current.loader, new WeakReference<>(current));
+            }
+        }
+        current.uses += 1;
+        current.leases += 1;
+        return new Lease(current);
+    }
+
+    /**
+     * Retires the current generation, for example after the libraries used by the scripts have been reloaded. It's
+     * disposed once its open leases are closed.
+     */
+    public void retire() {
+        retire(false);
+    }
+
+    /**
+     * Retires the current generation if it has reached the maximum age. Taking and closing leases already does it, so
+     * this is only needed to release the last generation of a node that stops running scripts.
+     */
+    public void retireExpired() {
+        retire(true);
+    }
+
+    private void retire(boolean expiredOnly) {
+        final Generation generation;
+        synchronized (this) {
+            generation = current;
+            if (generation == null || expiredOnly && System.nanoTime() - generation.created < maxAgeNanos) {
+                return;
+            }
+            current = null;
+            if (generation.leases > 0) {
+                retired.add(generation);
+                return;
+            }
+        }
+        dispose(generation);
+    }
+
+    private void release(Lease lease) {
+        final Generation generation = lease.generation;
+        final boolean last;
+        synchronized (this) {
+            if (lease.closed) {
+                return;
+            }
+            lease.closed = true;
+            generation.leases -= 1;
+            last = generation.leases == 0 && retired.remove(generation);
+        }
+        if (last) {
+            dispose(generation);
+        } else {
+            retireExpired();
+        }
+    }
+
+    private void dispose(Generation generation) {
+        synchronized (GENERATIONS) {
+            GENERATIONS.remove(generation.loader);
+        }
+        generation.disposed = true;
+        final Class<?>[] classes = generation.loader.getLoadedClasses();
+        for (Class<?> clazz : classes) {
+            // removes the metaclass from the registry and flushes the bean introspector
+            InvokerHelper.removeClass(clazz);
+            if (CLASS_INFO != null) {
+                CLASS_INFO.remove(clazz);
+            }
+        }
+        generation.loader.clearCache();
+        releaseCompilationUnit(generation.loader);
+        try {
+            generation.loader.close();
+        } catch (IOException e) {
+            // only jars opened by the loader are closed, the classes are unloaded anyway
+        }
+        synchronized (this) {
+            disposed += 1;
+            unloadedClasses += classes.length;
+        }
+    }
+
+    /**
+     * An {@link ASTTransformationCustomizer} keeps the last compilation unit it took part in, and with it the last
+     * class compiled with the shared configuration
+     */
+    private void releaseCompilationUnit(GroovyClassLoader loader) {
+        for (CompilationCustomizer customizer : config.getCompilationCustomizers()) {
+            if (customizer instanceof ASTTransformationCustomizer) {
+                final ASTTransformationCustomizer transformationCustomizer = (ASTTransformationCustomizer) customizer;
+                final Object unit = InvokerHelper.getProperty(transformationCustomizer, "compilationUnit");
+                if (unit instanceof CompilationUnit && ((CompilationUnit) unit).getClassLoader() == loader) {
+                    transformationCustomizer.setCompilationUnit(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param loader a class loader, usually the one of a script class
+     * @return the generation that loader belongs to, null if it's not one of a live generation
+     */
+    static Generation generationOf(ClassLoader loader) {
+        synchronized (GENERATIONS) {
+            for (ClassLoader ancestor = loader; ancestor != null; ancestor = ancestor.getParent()) {
+                final WeakReference<Generation> generation = GENERATIONS.get(ancestor);
+                if (generation != null) {
+                    return generation.get();
+                }
+            }
+        }
+        return null;
+    }
+
+    private long metaspaceUsed() {
+        if (metaspace == null) {
+            return 0L;
+        }
+        final MemoryUsage usage = metaspace.getUsage();
+        return usage != null ? usage.getUsed() : 0L;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static GroovyClassValue<ClassInfo> findClassInfo() {
+        try {
+            final Field field = ClassInfo.class.getDeclaredField("globalClassValue");
+            field.setAccessible(true);
+            return (GroovyClassValue<ClassInfo>) field.get(null);
+        } catch (NoSuchFieldException | IllegalAccessException | RuntimeException e) {
+            // other Groovy versions, classes are only unloaded if their ClassInfo is collectable there
+            return null;
+        }
+    }
+
+    private static MemoryPoolMXBean findMetaspace() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (METASPACE_POOL.equals(pool.getName())) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the count of generations created by this manager
+     */
+    public synchronized long getGenerations() {
+        return generations;
+    }
+
+    /**
+     * @return the count of retired generations waiting for their leases to be closed
+     */
+    public synchronized int getRetired() {
+        return retired.size();
+    }
+
+    /**
+     * @return the count of generations disposed by this manager
+     */
+    public synchronized long getDisposed() {
+        return disposed;
+    }
+
+    /**
+     * @return the count of classes of disposed generations
+     */
+    public synchronized long getUnloadedClasses() {
+        return unloadedClasses;
+    }
+
+    /**
+     * @return the count of classes of the current and retired generations
+     */
+    public synchronized int getLoadedClasses() {
+        int loaded = current != null ? current.loader.getLoadedClasses().length : 0;
+        for (Generation generation : retired) {
+            loaded += generation.loader.getLoadedClasses().length;
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the approximate metaspace taken by the current and retired generations in bytes
+     */
+    public synchronized long getMetaspace() {
+        long metaspace = current != null ? current.metaspace : 0L;
+        for (Generation generation : retired) {
+            metaspace += generation.metaspace;
+        }
+        return metaspace;
+    }
+
+    /**
+     * @return the metaspace used by the whole JVM in bytes, 0 if it's not reported
+     */
+    public long getMetaspaceUsed() {
+        return metaspaceUsed();
+    }
+
+    /**
+     * A class loader and the stats of the scripts it compiled
+     */
+    public static final class Generation {
+
+        private final GroovyClassLoader loader;
+        private final long created = System.nanoTime();
+        /* Leases handed out, guarded by the manager */
+        private int uses = 0;
+        /* Leases not yet closed, guarded by the manager */
+        private int leases = 0;
+        /* Metaspace growth while compiling, written under the manager lock */
+        private volatile long metaspace = 0L;
+        private volatile boolean disposed = false;
+
+        private Generation(GroovyClassLoader loader) {
+            this.loader = loader;
+        }
+
+        /**
+         * @return the count of classes loaded by this generation, 0 once it's disposed
+         */
+        public int getLoadedClasses() {
+            return disposed ? 0 : loader.getLoadedClasses().length;
+        }
+
+        /**
+         * @return the approximate metaspace taken by this generation in bytes
+         */
+        public long getMetaspace() {
+            return metaspace;
+        }
+
+        /**
+         * @return true once this generation has been disposed and its classes left to the garbage collector
+         */
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+
+    /**
+     * The right to compile and run scripts in a generation. Closing the last lease of a retired generation disposes it.
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final Generation generation;
+        private boolean closed = false;
+
+        private Lease(Generation generation) {
+            this.generation = generation;
+        }
+
+        /**
+         * @return the generation of this lease
+         */
+        public Generation getGeneration() {
+            return generation;
+        }
+
+        /**
+         * @return the loader compiling the scripts of this lease
+         */
+        public GroovyClassLoader getClassLoader() {
+            return generation.loader;
+        }
+
+        /**
+         * Compiles a script in the generation of this lease
+         *
+         * @param text source of the script
+         * @return the compiled class
+         */
+        public Class<?> parseClass(String text) {
+            final long before = metaspaceUsed();
+            final Class<?> clazz = generation.loader.parseClass(text);
+            final long growth = metaspaceUsed() - before;
+            if (growth > 0L) {
+                synchronized (ScriptClassLoaderManager.this) {
+                    generation.metaspace += growth;
+                }
+            }
+            return clazz;
+        }
+
+        /**
+         * Compiles a script in the generation of this lease and creates an instance of it
+         *
+         * @param text source of the script
+         * @param binding binding of the script
+         * @return the script, ready to run
+         */
+        public Script parse(String text, Binding binding) {
+            return InvokerHelper.createScript(parseClass(text), binding);
+        }
+
+        /**
+         * @return the count of classes loaded by the generation of this lease
+         */
+        public int getLoadedClasses() {
+            return generation.getLoadedClasses();
+        }
+
+        /**
+         * @return the approximate metaspace taken by the generation of this lease in bytes
+         */
+        public long getMetaspace() {
+            return generation.getMetaspace();
+        }
+
+        /**
+         * Closes this lease. Further calls have no effect.
+         */
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
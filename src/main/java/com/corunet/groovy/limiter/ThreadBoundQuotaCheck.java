@@ -0,0 +1,106 @@
+package com.corunet.groovy.limiter;
+
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Holds the {@link MemoryQuotaCheck} bound to each thread, so code that has no reference to the script's checker (for
+ * example precompiled classes instrumented by {@link CheckMemoryQuotaClassTransformer}) can still check its quota.
+ *
+ * Guarded scripts bind their checker for the duration of their run() method, and guarded methods and classes for the
+ * duration of each call, nested in the checker bound before.
+ */
+public final class ThreadBoundQuotaCheck {
+
+    /* Internal name used by instrumented bytecode */
+    static final String INTERNAL_NAME = "com/corunet/groovy/limiter/ThreadBoundQuotaCheck";
+
+    private static final ThreadLocal<MemoryQuotaCheck> CURRENT = new ThreadLocal<>();
+
+    private ThreadBoundQuotaCheck() {
+    }
+
+    /**
+     * @return the checker bound to the current thread or null if there is none
+     */
+    public static MemoryQuotaCheck current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds a checker to the current thread
+     *
+     * @param memoryQuotaCheck the checker to bind, null unbinds the current one
+     * @return the checker previously bound, to be given back to {@link #restore(MemoryQuotaCheck)}
+     */
+    public static MemoryQuotaCheck bind(MemoryQuotaCheck memoryQuotaCheck) {
+        final MemoryQuotaCheck previous = CURRENT.get();
+        restore(memoryQuotaCheck);
+        return previous;
+    }
+
+    /**
+     * Restores a checker previously returned by {@link #bind(MemoryQuotaCheck)}
+     *
+     * @param previous the checker to bind again, null leaves the thread without checker
+     */
+    public static void restore(MemoryQuotaCheck previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Creates the checker of a guarded method or class about to be entered, unless a checker bound to the current
+     * thread already guards it, as happens on recursive calls or calls between methods of a guarded class. Called from
+     * code annotated on a method or class.
+     *
+     * @param scope name of the guarded method or class
+     * @return a new checker to be configured and started, or null if the scope is already guarded
+     */
+    public static MemoryQuotaCheck enter(String scope) {
+        for (MemoryQuotaCheck bound = CURRENT.get(); bound != null; bound = bound.getParent()) {
+            if (scope.equals(bound.getScope())) {
+                return null;
+            }
+        }
+        final MemoryQuotaCheck memoryQuotaCheck =
+            new MemoryQuotaCheck((ThreadMXBean) ManagementFactory.getThreadMXBean());
+        memoryQuotaCheck.setScope(scope);
+        return memoryQuotaCheck;
+    }
+
+    /**
+     * Leaves a guarded method or class, restoring the checker bound before it was entered
+     *
+     * @param memoryQuotaCheck the checker returned by {@link #enter(String)}, may be null
+     */
+    public static void exit(MemoryQuotaCheck memoryQuotaCheck) {
+        if (memoryQuotaCheck != null) {
+            memoryQuotaCheck.unbind();
+        }
+    }
+
+    /**
+     * Checks the quota of the checker bound to the current thread, if any. Called from instrumented code.
+     */
+    public static void check() {
+        final MemoryQuotaCheck memoryQuotaCheck = CURRENT.get();
+        if (memoryQuotaCheck != null) {
+            memoryQuotaCheck.check();
+        }
+    }
+
+    /**
+     * Updates the stats of the checker bound to the current thread, if any, without invoking its handler
+     */
+    public static void checkStats() {
+        final MemoryQuotaCheck memoryQuotaCheck = CURRENT.get();
+        if (memoryQuotaCheck != null) {
+            memoryQuotaCheck.checkStats();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.corunet.groovy.limiter;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.Test;
+
+public class AdmissionSchedulerTest {
+
+    private static MemoryQuotaCheck finishedRun(long maximum) {
+        return finishedRun(maximum, 0L);
+    }
+
+    private static MemoryQuotaCheck finishedRun(long maximum, long average) {
+        return new MemoryQuotaCheck((ThreadMXBean) ManagementFactory.getThreadMXBean()) {
+            @Override
+            public long getMaximum() {
+                return maximum;
+            }
+
+            @Override
+            public long getAverage() {
+                return average;
+            }
+
+            @Override
+            public long getChecks() {
+                return 1L;
+            }
+        };
+    }
+
+    @Test
+    void testDefaultEstimate() {
+        final AdmissionScheduler scheduler = new AdmissionScheduler(1000L, 100L);
+        assertEquals(100L, scheduler.getEstimate("unknown"));
+    }
+
+    @Test
+    void testLearnRisesImmediatelyAndDecaysSlowly() throws InterruptedException {
+        final AdmissionScheduler scheduler = new AdmissionScheduler(1000L, 100L);
+        scheduler.admit("script", 1, TimeUnit.SECONDS).release(finishedRun(800L));
+        assertEquals(800L, scheduler.getEstimate("script"));
+        scheduler.admit("script", 1, TimeUnit.SECONDS).release(finishedRun(400L));
+        assertEquals(700L, scheduler.getEstimate("script"));
+        scheduler.forget("script");
+        assertEquals(100L, scheduler.getEstimate("script"));
+    }
+
+    @Test
+    void testAverageBoundsDecay() throws InterruptedException {
+        final AdmissionScheduler scheduler = new AdmissionScheduler(1000L, 100L);
+        scheduler.admit("script", 1, TimeUnit.SECONDS).release(finishedRun(800L, 700L));
+        // smoothed average 700 - (700 - 100) / 4 = 550, the estimate decays towards it rather than towards 400
+        scheduler.admit("script", 1, TimeUnit.SECONDS).release(finishedRun(400L, 100L));
+        assertEquals(738L, scheduler.getEstimate("script"));
+        // a run ending above the smoothed average decays towards its own maximum
+        scheduler.admit("script", 1, TimeUnit.SECONDS).release(finishedRun(730L, 300L));
+        assertEquals(736L, scheduler.getEstimate("script"));
+    }
+
+    @Test
+    void testReleaseWithoutChecksLearnsNothing() throws InterruptedException {
+        final AdmissionScheduler scheduler = new AdmissionScheduler(1000L, 100L);
+        scheduler.admit("script", 1, TimeUnit.SECONDS)
+            .release(new MemoryQuotaCheck((ThreadMXBean) ManagementFactory.getThreadMXBean()));
+        assertEquals(100L, scheduler.getEstimate("script"));
+    }
+
+    @Test
+    void testTryAdmitRespectsBudget() {
+        final AdmissionScheduler scheduler = new AdmissionScheduler(250L, 100L);
+        final AdmissionScheduler.Admission first = scheduler.tryAdmit("a");
+        final AdmissionScheduler.Admission second = scheduler.tryAdmit("b");
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(scheduler.tryAdmit("c"), "Admitted over budget");
+        assertEquals(200L, scheduler.getReserved());
+        second.release();
+        second.release();
+        assertEquals(1, scheduler.getRunning());
+        assertNotNull(scheduler.tryAdmit("c"));
+        assertEquals(1L, scheduler.getMissed());
+        assertEquals(0L, scheduler.getRejected());
+    }
+
+    @Test
+    void testOverBudgetEstimateIsCapped() throws InterruptedException {
+        final AdmissionScheduler scheduler = new AdmissionScheduler(1000L, 100L);
+        scheduler.admit("heavy", 1, TimeUnit.SECONDS).release(finishedRun(2000L));
+        assertEquals(1000L, scheduler.getEstimate("heavy"));
+        final AdmissionScheduler.Admission alone = scheduler.admit("heavy", 1, TimeUnit.SECONDS);
+        assertNull(scheduler.tryAdmit("light"), "Admitted beside a script using the whole budget");
+        alone.release(finishedRun(200L));
+        assertEquals(800L, scheduler.getEstimate("heavy"));
+        assertEquals(0L, scheduler.getRejected());
+    }
+
+    @Test
+    void testTimeout() throws InterruptedException {
+        final AdmissionScheduler scheduler = new AdmissionScheduler(150L, 100L);
+        scheduler.admit("a", 1, TimeUnit.SECONDS);
+        assertThrows(RejectedExecutionException.class, () -> scheduler.admit("b", 10, TimeUnit.MILLISECONDS));
+        assertEquals(0, scheduler.getQueued());
+        assertEquals(1L, scheduler.getRejected());
+    }
+
+    @Test
+    void testQueuedUntilReleased() throws InterruptedException {
+        final AdmissionScheduler scheduler = new AdmissionScheduler(150L, 100L);
+        final AdmissionScheduler.Admission first = scheduler.admit("a", 1, TimeUnit.SECONDS);
+        final CountDownLatch admitted = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread waiter = new Thread(() -> {
+            try {
+                scheduler.admit("b", 10, TimeUnit.SECONDS).release();
+                admitted.countDown();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        waiter.start();
+        while (scheduler.getQueued() == 0) {
+            Thread.sleep(1L);
+        }
+        assertEquals(1L, admitted.getCount(), "Admitted while the budget was full");
+        first.release();
+        assertTrue(admitted.await(10, TimeUnit.SECONDS), "Not admitted after release");
+        waiter.join();
+        assertNull(failure.get());
+        assertEquals(2L, scheduler.getAdmitted());
+    }
+
+    @Test
+    void testBadBudget() {
+        assertThrows(IllegalArgumentException.class, () -> new AdmissionScheduler(0L, 0L));
+        assertThrows(IllegalArgumentException.class, () -> new AdmissionScheduler(10L, 11L));
+    }
+}
@@ -0,0 +1,148 @@
+package com.corunet.groovy.limiter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.Test;
+
+public class AllocationTimelineTest {
+
+    @Test
+    void testRecordBelowCapacity() {
+        final AllocationTimeline timeline = new AllocationTimeline(8);
+        for (int i = 0; i < 5; i++) {
+            timeline.record(i * 10L, i * 100L);
+        }
+        assertEquals(5, timeline.size());
+        assertEquals(1L, timeline.getStride());
+        assertEquals(40L, timeline.getTime(4));
+        assertEquals(400L, timeline.getBytes(4));
+    }
+
+    @Test
+    void testDownsampleWhenFull() {
+        final AllocationTimeline timeline = new AllocationTimeline(8);
+        for (int i = 0; i < 1000; i++) {
+            timeline.record(i, i);
+        }
+        assertTrue(timeline.size() <= 8, "Timeline grew past its capacity");
+        assertEquals(1000L, timeline.getRecorded());
+        assertEquals(0L, timeline.getTime(0), "First sample lost");
+        assertEquals(999L, timeline.getBytes(timeline.size() - 1), "Last sample lost");
+        for (int i = 1; i < timeline.size(); i++) {
+            assertTrue(timeline.getTime(i) > timeline.getTime(i - 1), "Samples out of order");
+        }
+    }
+
+    @Test
+    void testEvenSpacingAfterDownsample() {
+        for (int capacity = 3; capacity <= 10; capacity++) {
+            final AllocationTimeline timeline = new AllocationTimeline(capacity);
+            for (int i = 0; i < 1000; i++) {
+                timeline.record(i, i);
+                assertTrue(timeline.size() <= capacity, "Timeline grew past its capacity " + capacity);
+            }
+            // every stored sample but the latest one is one stride apart from the previous one
+            final int stored = timeline.getTime(timeline.size() - 1) == 999L ? timeline.size() - 1 : timeline.size();
+            for (int i = 1; i < stored; i++) {
+                assertEquals(timeline.getStride(), timeline.getTime(i) - timeline.getTime(i - 1),
+                    "Uneven spacing with capacity " + capacity);
+            }
+        }
+    }
+
+    @Test
+    void testBadCapacity() {
+        assertThrows(IllegalArgumentException.class, () -> new AllocationTimeline(2));
+    }
+
+    @Test
+    void testBadIndex() {
+        final AllocationTimeline timeline = new AllocationTimeline(4);
+        timeline.record(1L, 1L);
+        assertThrows(IndexOutOfBoundsException.class, () -> timeline.getTime(1));
+    }
+
+    @Test
+    void testWriteCsv() throws IOException {
+        final AllocationTimeline timeline = new AllocationTimeline(4);
+        timeline.record(100L, 10L);
+        timeline.record(150L, 20L);
+        final StringBuilder csv = new StringBuilder();
+        timeline.writeCsv(csv);
+        assertEquals("nanos,bytes\n0,10\n50,20\n", csv.toString());
+    }
+
+    @Test
+    void testWriteBinary() throws IOException {
+        final AllocationTimeline timeline = new AllocationTimeline(4);
+        timeline.record(100L, 10L);
+        timeline.record(150L, 20L);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        timeline.writeBinary(new DataOutputStream(bytes));
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(AllocationTimeline.MAGIC, in.readInt());
+        assertEquals(2, in.readInt());
+        assertEquals(100L, in.readLong());
+        assertEquals(0L, readVarLong(in));
+        assertEquals(10L, readVarLong(in));
+        assertEquals(50L, readVarLong(in));
+        assertEquals(10L, readVarLong(in));
+        assertEquals(-1, in.read(), "Trailing bytes");
+    }
+
+    @Test
+    void testWriteBinaryLargeDeltas() throws IOException {
+        final AllocationTimeline timeline = new AllocationTimeline(4);
+        timeline.record(0L, Long.MAX_VALUE / 2);
+        timeline.record(1L << 40, 0L);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        timeline.writeBinary(new DataOutputStream(bytes));
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        in.readInt();
+        in.readInt();
+        in.readLong();
+        assertEquals(0L, readVarLong(in));
+        assertEquals(Long.MAX_VALUE / 2, readVarLong(in));
+        assertEquals(1L << 40, readVarLong(in));
+        assertEquals(-(Long.MAX_VALUE / 2), readVarLong(in));
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long zigzag = 0L;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1L);
+    }
+
+    @Test
+    void testCheckRecordsTimeline() {
+        final MemoryQuotaCheck memoryQuotaCheck = new MemoryQuotaCheck(
+            (ThreadMXBean) ManagementFactory.getThreadMXBean());
+        memoryQuotaCheck.setTimeline(new AllocationTimeline(16));
+        memoryQuotaCheck.setLimit(Long.MAX_VALUE);
+        memoryQuotaCheck.init();
+        memoryQuotaCheck.check();
+        memoryQuotaCheck.check();
+        assertNotNull(memoryQuotaCheck.getTimeline());
+        assertEquals(2, memoryQuotaCheck.getTimeline().size());
+        assertEquals(memoryQuotaCheck.getMaximum(), Math.max(
+            memoryQuotaCheck.getTimeline().getBytes(0), memoryQuotaCheck.getTimeline().getBytes(1)));
+    }
+}
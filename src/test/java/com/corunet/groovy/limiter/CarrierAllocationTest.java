@@ -0,0 +1,138 @@
+package com.corunet.groovy.limiter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.Test;
+
+public class CarrierAllocationTest {
+
+    private Random random = new Random();
+
+    @Test
+    void testChargesSameCarrier() {
+        final CarrierAllocation carrierAllocation = new CarrierAllocation(
+            (ThreadMXBean) ManagementFactory.getThreadMXBean(), Thread::currentThread);
+        assertEquals(0L, carrierAllocation.allocatedBytes());
+        final byte[] aux = new byte[1024 * 1024 * 8];
+        random.nextBytes(aux);
+        assertTrue(carrierAllocation.allocatedBytes() >= aux.length, "Carrier allocation not charged");
+    }
+
+    @Test
+    void testNewCarrierWindowLost() throws InterruptedException {
+        final Thread other = new Thread(() -> { });
+        other.start();
+        other.join();
+        final AtomicReference<Thread> carrier = new AtomicReference<>(Thread.currentThread());
+        final CarrierAllocation carrierAllocation = new CarrierAllocation(
+            (ThreadMXBean) ManagementFactory.getThreadMXBean(), carrier::get);
+        carrierAllocation.allocatedBytes();
+        // mounted on a carrier it never ran on: nothing to measure from
+        carrier.set(other);
+        assertEquals(0L, carrierAllocation.allocatedBytes());
+        assertEquals(1L, carrierAllocation.getLostWindows());
+    }
+
+    @Test
+    void testOnlyObservedMountsCharged() throws Exception {
+        final ExecutorService carrier = Executors.newSingleThreadExecutor();
+        try {
+            // accounting starts on a mount that wasn't observed
+            final CarrierAllocation carrierAllocation = carrier.submit(() -> {
+                final CarrierAllocation started = new CarrierAllocation(
+                    (ThreadMXBean) ManagementFactory.getThreadMXBean(), Thread::currentThread);
+                started.allocatedBytes();
+                return started;
+            }).get();
+            final AtomicLong charged = new AtomicLong();
+            // the script allocates, checks and parks
+            carrier.submit(carrierAllocation.observe(() -> {
+                final byte[] aux = new byte[1024 * 1024 * 8];
+                random.nextBytes(aux);
+                charged.set(carrierAllocation.allocatedBytes());
+            })).get();
+            assertTrue(charged.get() >= 1024 * 1024 * 8, "Mounted allocation not charged");
+            // another virtual thread runs on the same carrier
+            carrier.submit(() -> random.nextBytes(new byte[1024 * 1024 * 32])).get();
+            carrier.submit(carrierAllocation.observe(() -> charged.set(carrierAllocation.allocatedBytes()))).get();
+            assertTrue(charged.get() < 1024 * 1024 * 16, "Allocation while unmounted charged: " + charged.get());
+            assertEquals(1L, carrierAllocation.getLostWindows());
+        } finally {
+            carrier.shutdown();
+        }
+    }
+
+    @Test
+    void testVirtualThreadCharged() throws Exception {
+        final String version = System.getProperty("java.specification.version");
+        assumeTrue(!version.startsWith("1.") && Integer.parseInt(version) >= 21, "Virtual threads need Java 21");
+        assumeTrue(CarrierAllocation.isSupported(), "Virtual thread carriers need java.lang open to the limiter");
+        final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        final Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final long[] charged = new long[4];
+        final long[] lostWindows = new long[1];
+        final Thread script = (Thread) unstarted.invoke(builder, (Runnable) () -> {
+            try {
+                final CarrierAllocation carrierAllocation =
+                    new CarrierAllocation((ThreadMXBean) ManagementFactory.getThreadMXBean());
+                try {
+                    charged[0] = carrierAllocation.allocatedBytes();
+                    random.nextBytes(new byte[1024 * 1024 * 8]);
+                    charged[1] = carrierAllocation.allocatedBytes();
+                    // parks while other virtual threads allocate, maybe on the same carrier
+                    allocateOnVirtualThreads(builder, unstarted);
+                    charged[2] = carrierAllocation.allocatedBytes();
+                    random.nextBytes(new byte[1024 * 1024 * 8]);
+                    allocateOnVirtualThreads(builder, unstarted);
+                    charged[3] = carrierAllocation.allocatedBytes();
+                    lostWindows[0] = carrierAllocation.getLostWindows();
+                } finally {
+                    carrierAllocation.close();
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        script.start();
+        script.join();
+        assertNull(failure.get());
+        assertTrue(charged[1] - charged[0] >= 1024 * 1024 * 8, "Mounted allocation not charged");
+        assertTrue(charged[2] - charged[1] < 1024 * 1024 * 16, "Other threads charged: " + (charged[2] - charged[1]));
+        assertTrue(charged[3] - charged[2] >= 1024 * 1024 * 8, "Allocation after remount not charged");
+        assertTrue(charged[3] - charged[2] < 1024 * 1024 * 24, "Other threads charged: " + (charged[3] - charged[2]));
+        // only the tail of the mount running when the accounting started is unknown
+        assertEquals(1L, lostWindows[0]);
+    }
+
+    private void allocateOnVirtualThreads(Object builder, Method unstarted) throws Exception {
+        final Runnable allocation = () -> random.nextBytes(new byte[1024 * 1024 * 16]);
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = (Thread) unstarted.invoke(builder, allocation);
+            threads[i].start();
+        }
+        // unmounts the script thread even if the others are done by then
+        Thread.sleep(10);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Test
+    void testPlatformThreadIsNotVirtual() {
+        assertFalse(CarrierAllocation.isVirtual(Thread.currentThread()));
+    }
+}
@@ -0,0 +1,169 @@
+package com.corunet.groovy.limiter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.corunet.groovy.limiter.fixture.LoopingHelper;
+import com.sun.management.ThreadMXBean;
+import groovy.lang.GroovyShell;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.junit.jupiter.api.Test;
+
+public class CheckMemoryQuotaClassTransformerTest {
+
+    private static final String FIXTURE_PACKAGE = "com.corunet.groovy.limiter.fixture";
+    private static final String HELPER = LoopingHelper.class.getName();
+
+    public static class QuotaInfringementHandler {
+
+        @SuppressWarnings("unused")
+        public static void handle(MemoryQuotaCheck memoryQuotaCheck) {
+            throw new OutOfMemoryError(
+                "Memory quota exceeded, current memory use " + memoryQuotaCheck.getMaximum() + " bytes");
+        }
+    }
+
+    private static CheckMemoryQuotaClassLoader classLoader(CompilerConfiguration compilerConfiguration) {
+        return new CheckMemoryQuotaClassLoader(
+            CheckMemoryQuotaClassTransformerTest.class.getClassLoader(),
+            compilerConfiguration,
+            new CheckMemoryQuotaClassTransformer(FIXTURE_PACKAGE)
+        );
+    }
+
+    @Test
+    void testIsTransformed() {
+        final CheckMemoryQuotaClassTransformer transformer = new CheckMemoryQuotaClassTransformer(FIXTURE_PACKAGE);
+        assertTrue(transformer.isTransformed(HELPER));
+        assertFalse(transformer.isTransformed(String.class.getName()));
+        assertFalse(new CheckMemoryQuotaClassTransformer("com.corunet")
+            .isTransformed(ThreadBoundQuotaCheck.class.getName()), "The limiter must never instrument itself");
+    }
+
+    @Test
+    void testBackwardBranchesAndEntryChecked() throws Exception {
+        final Class<?> helper = classLoader(new CompilerConfiguration()).loadClass(HELPER);
+        assertNotSame(LoopingHelper.class, helper);
+
+        final MemoryQuotaCheck memoryQuotaCheck = new MemoryQuotaCheck(
+            (ThreadMXBean) ManagementFactory.getThreadMXBean());
+        memoryQuotaCheck.setLimit(Long.MAX_VALUE);
+        memoryQuotaCheck.init();
+        memoryQuotaCheck.bind();
+        try {
+            assertEquals(4950L, helper.getMethod("sum", int.class).invoke(null, 100));
+        } finally {
+            memoryQuotaCheck.unbind();
+        }
+        // one check on entry and one on each of the 100 back edges
+        assertEquals(101L, memoryQuotaCheck.getChecks());
+        assertNull(ThreadBoundQuotaCheck.current());
+    }
+
+    @Test
+    void testUnboundThreadNotChecked() throws Exception {
+        final Class<?> helper = classLoader(new CompilerConfiguration()).loadClass(HELPER);
+        assertEquals(4950L, helper.getMethod("sum", int.class).invoke(null, 100));
+    }
+
+    @Test
+    void testScriptCallingHelperExceeds() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", 1024 * 1024 * 64L);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(classLoader(compilerConfiguration), compilerConfiguration);
+
+        assertThrows(OutOfMemoryError.class, () -> groovyShell.evaluate(
+            HELPER + ".allocate(128)\n"
+                + "return 5"
+        ));
+        assertNull(ThreadBoundQuotaCheck.current(), "Checker still bound after the script finished");
+    }
+
+    @Test
+    void testTransformDirectory() throws Exception {
+        final Path classes = Files.createTempDirectory("classes");
+        final Path classFile = classes.resolve(HELPER.replace('.', '/') + ".class");
+        Files.createDirectories(classFile.getParent());
+        final byte[] original = readClassFile();
+        Files.write(classFile, original);
+
+        CheckMemoryQuotaClassTransformer.main(new String[]{classes.toString(), FIXTURE_PACKAGE});
+
+        assertTrue(Files.readAllBytes(classFile).length > original.length);
+    }
+
+    private static byte[] readClassFile() throws IOException, URISyntaxException {
+        return Files.readAllBytes(Paths.get(
+            LoopingHelper.class.getResource("LoopingHelper.class").toURI()));
+    }
+
+    private static long checksOnSum(Class<?> helper, MemoryQuotaCheck memoryQuotaCheck) throws Exception {
+        memoryQuotaCheck.setLimit(0L);
+        memoryQuotaCheck.init();
+        memoryQuotaCheck.bind();
+        try {
+            assertEquals(4950L, helper.getMethod("sum", int.class).invoke(null, 100));
+        } finally {
+            memoryQuotaCheck.unbind();
+        }
+        return memoryQuotaCheck.getChecks();
+    }
+
+    @Test
+    void testCheckSitesMode() throws Exception {
+        final Class<?> helper = classLoader(new CompilerConfiguration()).loadClass(HELPER);
+        final AtomicInteger infringements = new AtomicInteger();
+        final ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        MemoryQuotaCheck memoryQuotaCheck = new MemoryQuotaCheck(threadMXBean);
+        memoryQuotaCheck.setHandler(check -> infringements.incrementAndGet());
+        assertEquals(101L, checksOnSum(helper, memoryQuotaCheck));
+        assertEquals(101, infringements.get());
+
+        memoryQuotaCheck = new MemoryQuotaCheck(threadMXBean);
+        memoryQuotaCheck.setHandler(check -> infringements.incrementAndGet());
+        memoryQuotaCheck.setMode(MemoryQuotaCheck.Mode.OFF);
+        assertEquals(0L, checksOnSum(helper, memoryQuotaCheck));
+
+        memoryQuotaCheck = new MemoryQuotaCheck(threadMXBean);
+        memoryQuotaCheck.setHandler(check -> infringements.incrementAndGet());
+        memoryQuotaCheck.setMode(MemoryQuotaCheck.Mode.STATS_ONLY);
+        assertEquals(101L, checksOnSum(helper, memoryQuotaCheck));
+        assertEquals(101, infringements.get(), "Handler invoked on a stats only checker");
+
+        // a checker turned off still lets the checker it's nested in check
+        final MemoryQuotaCheck outer = new MemoryQuotaCheck(threadMXBean);
+        outer.init();
+        outer.bind();
+        try {
+            memoryQuotaCheck = new MemoryQuotaCheck(threadMXBean);
+            memoryQuotaCheck.setMode(MemoryQuotaCheck.Mode.OFF);
+            assertEquals(0L, checksOnSum(helper, memoryQuotaCheck));
+            assertEquals(101L, outer.getChecks());
+        } finally {
+            outer.unbind();
+        }
+
+        memoryQuotaCheck = new MemoryQuotaCheck(threadMXBean);
+        memoryQuotaCheck.setHandler(check -> infringements.incrementAndGet());
+        assertEquals(101L, checksOnSum(helper, memoryQuotaCheck));
+        assertEquals(202, infringements.get(), "Sites not relinked to a full checker");
+    }
+}
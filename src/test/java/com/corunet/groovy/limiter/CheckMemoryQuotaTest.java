@@ -1,28 +1,51 @@
 package com.corunet.groovy.limiter;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import groovy.lang.Binding;
 import groovy.lang.GroovyShell;
+import groovy.lang.GroovySystem;
+import groovy.lang.MetaClassImpl;
 import groovy.lang.Script;
 import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.junit.jupiter.api.Test;
 
 public class CheckMemoryQuotaTest {
 
     private static final long MEGABYTES_64 = 1024 * 1024 * 64L;
     private static final long MEGABYTES_65 = 1024 * 1024 * 65L;
+    private static final String SCOPED_ANNOTATION = "@com.corunet.groovy.limiter.CheckMemoryQuota(\n"
+        + "    limit = %dL,\n"
+        + "    handlerClass = com.corunet.groovy.limiter.CheckMemoryQuotaTest.QuotaInfringementHandler,\n"
+        + "    handlerMethod = 'handleScope')\n";
 
 
     private static class QuotaInfringementHandler {
 
+        private static final List<InfringementEvent> EVENTS = new CopyOnWriteArrayList<>();
         private static boolean alreadyInvoked = false;
 
         @SuppressWarnings("unused")
@@ -39,6 +62,22 @@ public class CheckMemoryQuotaTest {
             memoryQuotaCheck.setEnabled(false);
             alreadyInvoked = true;
         }
+
+        @SuppressWarnings("unused")
+        public static void record(InfringementEvent event) {
+            EVENTS.add(event);
+        }
+
+        @SuppressWarnings("unused")
+        public static void handleScope(MemoryQuotaCheck memoryQuotaCheck) {
+            throw new OutOfMemoryError("Memory quota of " + memoryQuotaCheck.getScope() + " exceeded");
+        }
+
+        @SuppressWarnings("unused")
+        public static void handleIo(IoQuotaCheck ioQuotaCheck) {
+            throw new IllegalStateException(
+                "I/O quota exceeded, current I/O " + ioQuotaCheck.getBytesTransferred() + " bytes");
+        }
     }
 
     @Test
@@ -291,4 +330,475 @@ public class CheckMemoryQuotaTest {
         assertEquals(5, result);
 
     }
+
+    @Test
+    void testCheckSitesMode() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_65);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+        final String source = "def x = 0\n"
+            + "for (int i = 0; i < 3; i++) { x += i }\n"
+            + "return x";
+
+        final Class<?> scriptClass = groovyShell.parse(source).getClass();
+        // trusted and untrusted runs of the same class interleave, each checked as its own checker says
+        for (int i = 0; i < 3; i++) {
+            final Binding trusted = new Binding();
+            trusted.setVariable(MemoryQuotaCheck.MODE_VARIABLE, MemoryQuotaCheck.Mode.OFF);
+            Script script = InvokerHelper.createScript(scriptClass, trusted);
+            assertEquals(3, script.run());
+            assertEquals(0L, ((MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD)).getChecks());
+
+            script = InvokerHelper.createScript(scriptClass, new Binding());
+            assertEquals(3, script.run());
+            assertEquals(3L, ((MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD)).getChecks());
+        }
+    }
+
+    @Test
+    void testTimeline() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_65);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        map.put("timelineCapacity", 64);
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+
+        Script script = groovyShell.parse(
+            "for(int i=0; i<1000; i+=1) { new byte[1024] }\n"
+                + "return 5"
+        );
+
+        script.run();
+        MemoryQuotaCheck memoryQuotaCheck =
+            (MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD);
+
+        assertNotNull(memoryQuotaCheck.getTimeline());
+        assertEquals(memoryQuotaCheck.getChecks(), memoryQuotaCheck.getTimeline().getRecorded());
+        assertTrue(memoryQuotaCheck.getTimeline().size() <= 65);
+    }
+
+    @Test
+    void testParallelCompilation() throws InterruptedException, ExecutionException {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_65);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        // A single customizer, and thus a single transformation instance, shared by every compilation
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+
+        final int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Script>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final int value = i;
+                futures.add(executor.submit(() -> new GroovyShell(compilerConfiguration).parse(
+                    "def method(x) { x }\n"
+                        + "def total = 0\n"
+                        + "for(int i=0; i<3; i+=1) { total += [1, 2].collect { it } .size() }\n"
+                        + "return method(" + value + ")"
+                )));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Script script = futures.get(i).get();
+                assertEquals(i, (int) script.run(), "Unexpected result on parallel compiled script");
+                MemoryQuotaCheck memoryQuotaCheck =
+                    (MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD);
+                // 3 loop iterations, 6 closure calls and 1 method call
+                assertEquals(10, memoryQuotaCheck.getChecks());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String straightLineScript(int statements) {
+        StringBuilder script = new StringBuilder("def x = 0\n");
+        for (int i = 1; i < statements; i++) {
+            script.append("x += 1\n");
+        }
+        return script.append("return x").toString();
+    }
+
+    @Test
+    void testCheckEveryOnStraightLineCode() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_65);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        map.put("checkEvery", 10);
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+
+        Script script = groovyShell.parse(straightLineScript(200));
+
+        assertEquals(199, (int) script.run());
+        MemoryQuotaCheck memoryQuotaCheck =
+            (MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD);
+        // one check after every 10 of the 201 statements, none after the last one
+        assertEquals(20, memoryQuotaCheck.getChecks());
+    }
+
+    @Test
+    void testCheckEveryExceedOnStraightLineCode() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_64);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        map.put("checkEvery", 2);
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+        assertThrows(OutOfMemoryError.class, () -> groovyShell.evaluate(
+            "def garbage = new byte[1024 * 1024 * 64]\n"
+                + "def x = 1\n"
+                + "return 5"
+        ));
+    }
+
+    @Test
+    void testCheckEveryOnBranches() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_65);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        map.put("checkEvery", 10);
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+
+        Script script = groovyShell.parse(
+            "def x = 0\n"
+                + "if (x == 0) { x += 1; x += 1; x += 1; x += 1; x += 1; x += 1 } else { x = 1 }\n"
+                + "try { " + straightLineScript(9).replace("def x = 0", "x = 0").replace("return x", "x += 1")
+                + " } finally { x += 1 }\n"
+                + "switch (x) { case 1: x = 2; break; default: x = 3 }\n"
+                + "return x"
+        );
+
+        script.run();
+        MemoryQuotaCheck memoryQuotaCheck =
+            (MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD);
+        // the try block is checked at its start and, as its 10 statements and the finally block follow that check,
+        // again before the switch
+        assertEquals(2, memoryQuotaCheck.getChecks());
+    }
+
+    @Test
+    void testCheckEveryCountsHeaviestBranch() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_65);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        map.put("checkEvery", 10);
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+
+        Script script = groovyShell.parse(
+            "def x = 0\n"
+                + "if (x == 0) { x += 1; x += 1; x += 1; x += 1; x += 1; x += 1; x += 1; x += 1; x += 1 }"
+                + " else { x = 1; x = 2; x = 3; x = 4; x = 5; x = 6; x = 7; x = 8; x = 9 }\n"
+                + "x += 1\n"
+                + "return x"
+        );
+
+        assertEquals(10, (int) script.run());
+        MemoryQuotaCheck memoryQuotaCheck =
+            (MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD);
+        // neither branch reaches checkEvery but each path does, so the if is followed by a check
+        assertEquals(1, memoryQuotaCheck.getChecks());
+    }
+
+    @Test
+    void testOffHeapExceed() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_65);
+        map.put("offHeapLimit", 1024 * 1024L);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+        assertThrows(OutOfMemoryError.class, () -> groovyShell.evaluate(
+            "def buffers = [1, 1].collect { java.nio.ByteBuffer.allocateDirect(1024 * 1024) }\n"
+                + "return 5"
+        ));
+    }
+
+    @Test
+    void testOffHeapUsage() throws IOException {
+        final Path file = Files.createTempFile("mapped", ".bin");
+        Files.write(file, new byte[4096]);
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_65);
+        map.put("offHeapLimit", MEGABYTES_64);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+
+        Script script = groovyShell.parse(
+            "import java.nio.ByteBuffer\n"
+                + "import java.nio.channels.FileChannel\n"
+                + "def direct = ByteBuffer.allocateDirect(1024)\n"
+                + "def channel = FileChannel.open(java.nio.file.Paths.get(path))\n"
+                + "def mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, 4096)\n"
+                + "channel.close()\n"
+                + "FileChannel typed = FileChannel.open(java.nio.file.Paths.get(path))\n"
+                + "mapped = typed.map(FileChannel.MapMode.READ_ONLY, 0, 2048)\n"
+                + "typed.close()\n"
+                + "def notAChannel = [map: { a, b, c -> a + b + c }]\n"
+                + "return notAChannel.map(1, 2, 3) + notAChannel.map(1, 2, { 3 }())"
+        );
+        Binding binding = new Binding();
+        binding.setVariable("path", file.toString());
+        script.setBinding(binding);
+
+        assertEquals(12, (int) script.run());
+        MemoryQuotaCheck memoryQuotaCheck =
+            (MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD);
+        assertEquals(1024L + 4096L + 2048L, memoryQuotaCheck.getOffHeapUsage());
+        assertFalse(memoryQuotaCheck.isOffHeapExceeded());
+        Files.delete(file);
+    }
+
+    @Test
+    void testIoExceed() throws IOException {
+        final Path file = Files.createTempFile("input", ".txt");
+        Files.write(file, new byte[4096]);
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_65);
+        map.put("ioLimit", 1024L);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        map.put("ioHandlerMethod", "handleIo");
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+        Binding binding = new Binding();
+        binding.setVariable("path", file.toString());
+        Script script = groovyShell.parse("return new File(path).text.size()");
+        script.setBinding(binding);
+
+        assertThrows(IllegalStateException.class, script::run);
+        Files.delete(file);
+    }
+
+    @Test
+    void testIoUsage() throws IOException {
+        final Path input = Files.createTempFile("input", ".txt");
+        final Path output = Files.createTempFile("output", ".txt");
+        Files.write(input, "line\nline\nline\n".getBytes("UTF-8"));
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_65);
+        map.put("ioLimit", MEGABYTES_64);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        map.put("ioHandlerMethod", "handleIo");
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+
+        Script script = groovyShell.parse(
+            "def file = new File(input)\n"
+                + "def text = file.text\n"
+                + "def count = 0\n"
+                + "file.eachLine { count++ }\n"
+                + "def lines = [file].collect { it.readLines() }\n"
+                + "def out = new File(output)\n"
+                + "out.text = 'abc'\n"
+                + "out << 'de'\n"
+                + "out.withWriterAppend { it.write('fg') }\n"
+                + "def read = new StringReader('hello').text\n"
+                + "def notAFile = [text: 'x']\n"
+                + "def list = [1]\n"
+                + "list << 2\n"
+                + "return notAFile.text + list.size() + count"
+        );
+        Binding binding = new Binding();
+        binding.setVariable("input", input.toString());
+        binding.setVariable("output", output.toString());
+        script.setBinding(binding);
+
+        assertEquals("x23", script.run());
+        assertEquals("abcdefg", new String(Files.readAllBytes(output), "UTF-8"));
+        MemoryQuotaCheck memoryQuotaCheck =
+            (MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD);
+        IoQuotaCheck ioQuotaCheck = memoryQuotaCheck.getIoQuotaCheck();
+        assertEquals(15L + 15L + 15L + 5L, ioQuotaCheck.getBytesRead());
+        assertEquals(4L, ioQuotaCheck.getReads());
+        assertEquals(3L + 2L + 2L, ioQuotaCheck.getBytesWritten());
+        assertEquals(3L, ioQuotaCheck.getWrites());
+        assertFalse(ioQuotaCheck.isExceeded());
+        assertEquals(MetaClassImpl.class, GroovySystem.getMetaClassRegistry().getMetaClass(File.class).getClass());
+        Files.delete(input);
+        Files.delete(output);
+    }
+
+    @Test
+    void testIoOtherReceiversNotRewritten() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_65);
+        map.put("ioLimit", MEGABYTES_64);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+
+        Script script = groovyShell.parse(
+            "class Document {\n"
+                + "    def intercepted() {\n"
+                + "        new Throwable().stackTrace.any {\n"
+                + "            it.className.startsWith('com.corunet.groovy.limiter.Io')\n"
+                + "        }\n"
+                + "    }\n"
+                + "    def getText() { intercepted() }\n"
+                + "    def write(data) { intercepted() }\n"
+                + "    def leftShift(data) { intercepted() }\n"
+                + "}\n"
+                + "def document = new Document()\n"
+                + "Document typed = document\n"
+                + "return [document.text, document.write('x'), document << 'x', typed.text]"
+        );
+
+        assertEquals(Arrays.asList(false, false, false, false), script.run());
+    }
+
+    @Test
+    void testMethodScope() {
+        GroovyShell groovyShell = new GroovyShell();
+        final String methods = String.format(SCOPED_ANNOTATION, 1024 * 1024L)
+            + "def risky() {\n"
+            + "    def garbage = new byte[1024 * 1024 * 2]\n"
+            + "    for (int i = 0; i < 1; i++) { garbage[i] = (byte) i }\n"
+            + "    return 1\n"
+            + "}\n"
+            + "def safe() {\n"
+            + "    def garbage = new byte[1024 * 1024 * 2]\n"
+            + "    for (int i = 0; i < 1; i++) { garbage[i] = (byte) i }\n"
+            + "    return 2\n"
+            + "}\n";
+
+        Script script = groovyShell.parse(methods + "return safe()");
+        assertEquals(2, script.run());
+        assertFalse(script.getBinding().hasVariable(MemoryQuotaCheck.CHECKER_FIELD));
+        assertNull(ThreadBoundQuotaCheck.current());
+
+        OutOfMemoryError error = assertThrows(OutOfMemoryError.class, () -> groovyShell.evaluate(methods + "risky()"));
+        assertTrue(error.getMessage().contains("#java.lang.Object risky()"), error.getMessage());
+        assertNull(ThreadBoundQuotaCheck.current());
+    }
+
+    @Test
+    void testNestedScopeChargesParent() {
+        GroovyShell groovyShell = new GroovyShell();
+        OutOfMemoryError error = assertThrows(OutOfMemoryError.class, () -> groovyShell.evaluate(
+            String.format(SCOPED_ANNOTATION, MEGABYTES_64)
+                + "def inner() {\n"
+                + "    def garbage = new byte[1024 * 1024 * 16]\n"
+                + "    for (int i = 0; i < 1; i++) { garbage[i] = (byte) i }\n"
+                + "    return 1\n"
+                + "}\n"
+                + String.format(SCOPED_ANNOTATION, 1024 * 1024 * 8L)
+                + "def outer() {\n"
+                + "    return inner()\n"
+                + "}\n"
+                + "outer()"
+        ));
+        assertTrue(error.getMessage().contains("outer()"), error.getMessage());
+    }
+
+    @Test
+    void testClassScope() {
+        GroovyShell groovyShell = new GroovyShell();
+        final String helper = String.format(SCOPED_ANNOTATION, 1024 * 1024L)
+            + "@groovy.transform.CompileStatic\n"
+            + "class Helper {\n"
+            + "    static int allocate() {\n"
+            + "        byte[] garbage = new byte[1024 * 1024 * 2]\n"
+            + "        int sum = 0\n"
+            + "        for (int i = 0; i < 2; i++) { sum += garbage[i] }\n"
+            + "        return sum\n"
+            + "    }\n"
+            + "    int outer() {\n"
+            + "        return inner()\n"
+            + "    }\n"
+            + "    int inner() {\n"
+            + "        return com.corunet.groovy.limiter.ThreadBoundQuotaCheck.current().parent == null ? 1 : 0\n"
+            + "    }\n"
+            + "}\n";
+
+        // calls between methods of the class share its checker
+        assertEquals(1, groovyShell.evaluate(helper + "new Helper().outer()"));
+        OutOfMemoryError error =
+            assertThrows(OutOfMemoryError.class, () -> groovyShell.evaluate(helper + "Helper.allocate()"));
+        assertTrue(error.getMessage().contains("Helper"), error.getMessage());
+        assertNull(ThreadBoundQuotaCheck.current());
+    }
+
+    @Test
+    void testScriptWithClassScope() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_64);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+
+        // the customizer guards the script and, with a checker of its own, the class it declares
+        Script script = groovyShell.parse(
+            "class Counter {\n"
+                + "    int sum(int n) {\n"
+                + "        int total = 0\n"
+                + "        for (int i = 0; i < n; i++) { total += i }\n"
+                + "        return total\n"
+                + "    }\n"
+                + "}\n"
+                + "return new Counter().sum(4)"
+        );
+        assertEquals(6, script.run());
+        MemoryQuotaCheck memoryQuotaCheck =
+            (MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD);
+        assertEquals(4L, memoryQuotaCheck.getChecks());
+    }
+
+    @Test
+    void testAsyncHandler() throws InterruptedException {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", MEGABYTES_64);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("asyncHandlerMethod", "record");
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
+        QuotaInfringementHandler.EVENTS.clear();
+
+        // the script is not stopped, every check over the limit publishes an event
+        assertEquals(5, groovyShell.evaluate(
+            "def garbage = new byte[1024 * 1024 * 64]\n"
+                + "for (int i = 0; i < 3; i++) { garbage[i] = (byte) i }\n"
+                + "return 5"
+        ));
+        assertTrue(InfringementDispatcher.getDefault().awaitIdle(5, TimeUnit.SECONDS));
+        long infringements = 0L;
+        for (InfringementEvent event : QuotaInfringementHandler.EVENTS) {
+            assertEquals(InfringementEvent.Kind.MEMORY, event.getKind());
+            assertTrue(event.getUsage() > MEGABYTES_64);
+            infringements += event.getCount();
+        }
+        assertEquals(3L, infringements);
+    }
 }
@@ -0,0 +1,147 @@
+package com.corunet.groovy.limiter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.sun.management.ThreadMXBean;
+import groovy.lang.GroovyClassLoader;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.control.MultipleCompilationErrorsException;
+import org.codehaus.groovy.control.Phases;
+import org.junit.jupiter.api.Test;
+
+public class CompilationQuotaCheckTest {
+
+    private static final String SCRIPT = "def list = [1, 2, 3]\n"
+        + "for (i in list) { println i }\n"
+        + "return list.sum()";
+
+    @Test
+    void testReportsPhaseCost() {
+        AtomicReference<CompilationQuotaCheck> result = new AtomicReference<>();
+        final CompilationQuotaClassLoader loader = new CompilationQuotaClassLoader(
+            getClass().getClassLoader(), new CompilerConfiguration(), Long.MAX_VALUE, 1, TimeUnit.HOURS);
+        loader.setListener(result::set);
+        loader.parseClass(SCRIPT);
+
+        final CompilationQuotaCheck compilationQuotaCheck = result.get();
+        assertNotNull(compilationQuotaCheck, "Listener not called");
+        assertEquals(Phases.CLASS_GENERATION, compilationQuotaCheck.getPhase());
+        assertTrue(compilationQuotaCheck.getAllocatedBytes(Phases.CONVERSION) > 0, "Conversion allocated nothing");
+        long total = 0L;
+        for (int phase = Phases.INITIALIZATION; phase <= Phases.ALL; phase++) {
+            total += compilationQuotaCheck.getAllocatedBytes(phase);
+        }
+        assertEquals(total, compilationQuotaCheck.getAllocatedBytes());
+    }
+
+    @Test
+    void testAllocationLimitExceeded() {
+        AtomicReference<CompilationQuotaCheck> result = new AtomicReference<>();
+        final CompilationQuotaClassLoader loader = new CompilationQuotaClassLoader(
+            getClass().getClassLoader(), new CompilerConfiguration(), 1024L, 1, TimeUnit.HOURS);
+        loader.setListener(result::set);
+        final MultipleCompilationErrorsException exception = assertThrows(
+            MultipleCompilationErrorsException.class, () -> loader.parseClass(SCRIPT));
+        assertTrue(exception.getMessage().contains("over the limit of 1024 bytes"), exception.getMessage());
+        assertNotNull(result.get(), "Listener not called on failure");
+        assertTrue(result.get().getPhase() < Phases.CLASS_GENERATION, "Compilation not aborted early");
+    }
+
+    @Test
+    void testPolledByTransformation() {
+        // every read of the allocated bytes counts 1000 more, so the limit is reached after a few polls
+        final AtomicLong allocated = new AtomicLong();
+        final ThreadMXBean threadMXBean = (ThreadMXBean) Proxy.newProxyInstance(
+            ThreadMXBean.class.getClassLoader(), new Class<?>[]{ThreadMXBean.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getThreadAllocatedBytes":
+                    case "getCurrentThreadAllocatedBytes":
+                        return allocated.addAndGet(1000L);
+                    case "getThreadCpuTime":
+                    case "getCurrentThreadCpuTime":
+                        return -1L;
+                    case "isCurrentThreadCpuTimeSupported":
+                        return false;
+                    default:
+                        return true;
+                }
+            });
+        final Map<String, Object> map = new HashMap<>();
+        map.put("limit", 1024L);
+        map.put("handlerClass", CompilationQuotaCheckTest.class);
+        final CompilerConfiguration config = new CompilerConfiguration();
+        config.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        final StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            script.append("def a").append(i).append(" = ").append(i).append('\n');
+        }
+        final CompilationUnit compilationUnit = new CompilationUnit(
+            config, null, new GroovyClassLoader(getClass().getClassLoader(), config));
+        compilationUnit.addSource("Polled.groovy", script.toString());
+        final CompilationQuotaCheck compilationQuotaCheck =
+            new CompilationQuotaCheck(threadMXBean, 10000L, 1, TimeUnit.HOURS);
+        compilationQuotaCheck.attach(compilationUnit);
+        CompilationQuotaCheck.bind(compilationQuotaCheck);
+        try {
+            final MultipleCompilationErrorsException exception = assertThrows(
+                MultipleCompilationErrorsException.class, () -> compilationUnit.compile(Phases.CANONICALIZATION));
+            assertTrue(exception.getMessage().contains("during phase 'canonicalization'"), exception.getMessage());
+            assertEquals(Phases.SEMANTIC_ANALYSIS, compilationQuotaCheck.getPhase());
+        } finally {
+            CompilationQuotaCheck.bind(null);
+        }
+    }
+
+    @Test
+    void testPolledByParser() {
+        final StringBuilder script = new StringBuilder();
+        for (int method = 0; method < 50; method++) {
+            script.append("def list").append(method).append("() { [");
+            for (int i = 0; i < 1000; i++) {
+                script.append(i).append(", ");
+            }
+            script.append("0] }\n");
+        }
+        final AtomicReference<CompilationQuotaCheck> result = new AtomicReference<>();
+        final CompilationQuotaClassLoader unlimited = new CompilationQuotaClassLoader(
+            getClass().getClassLoader(), new CompilerConfiguration(), Long.MAX_VALUE, 1, TimeUnit.HOURS);
+        unlimited.setListener(result::set);
+        unlimited.parseClass(script.toString());
+        final long parsing = result.get().getAllocatedBytes(Phases.INITIALIZATION)
+            + result.get().getAllocatedBytes(Phases.PARSING);
+        final long conversion = result.get().getAllocatedBytes(Phases.CONVERSION);
+
+        final CompilationQuotaClassLoader parsingLimited = new CompilationQuotaClassLoader(
+            getClass().getClassLoader(), new CompilerConfiguration(), parsing / 2, 1, TimeUnit.HOURS);
+        MultipleCompilationErrorsException exception = assertThrows(
+            MultipleCompilationErrorsException.class, () -> parsingLimited.parseClass(script.toString()));
+        assertTrue(exception.getMessage().contains("during phase 'parsing'"), exception.getMessage());
+
+        final CompilationQuotaClassLoader conversionLimited = new CompilationQuotaClassLoader(
+            getClass().getClassLoader(), new CompilerConfiguration(), parsing + conversion / 2, 1, TimeUnit.HOURS);
+        exception = assertThrows(
+            MultipleCompilationErrorsException.class, () -> conversionLimited.parseClass(script.toString()));
+        assertTrue(exception.getMessage().contains("during phase 'conversion'"), exception.getMessage());
+    }
+
+    @Test
+    void testBadLimits() {
+        final ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertThrows(IllegalArgumentException.class,
+            () -> new CompilationQuotaCheck(threadMXBean, -1L, 1, TimeUnit.SECONDS));
+        assertThrows(IllegalArgumentException.class, () -> new CompilationQuotaClassLoader(
+            getClass().getClassLoader(), new CompilerConfiguration(), 1024L, -1, TimeUnit.SECONDS));
+    }
+}
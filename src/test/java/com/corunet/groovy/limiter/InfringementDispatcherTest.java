@@ -0,0 +1,156 @@
+package com.corunet.groovy.limiter;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.Test;
+
+public class InfringementDispatcherTest {
+
+    private static MemoryQuotaCheck newCheck() {
+        return new MemoryQuotaCheck((ThreadMXBean) ManagementFactory.getThreadMXBean());
+    }
+
+    @Test
+    void testCoalescesQueuedEvents() throws InterruptedException {
+        final InfringementDispatcher dispatcher = new InfringementDispatcher(16);
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<InfringementEvent> events = new CopyOnWriteArrayList<>();
+        final Consumer<InfringementEvent> handler = event -> {
+            handling.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            events.add(event);
+        };
+        final MemoryQuotaCheck memoryQuotaCheck = newCheck();
+        try {
+            assertTrue(dispatcher.publish(memoryQuotaCheck, InfringementEvent.Kind.MEMORY, 10L, 5L, handler));
+            assertTrue(handling.await(5, TimeUnit.SECONDS));
+            // the first event is being handled, these wait in the queue as a single event
+            assertTrue(dispatcher.publish(memoryQuotaCheck, InfringementEvent.Kind.MEMORY, 30L, 5L, handler));
+            assertTrue(dispatcher.publish(memoryQuotaCheck, InfringementEvent.Kind.MEMORY, 20L, 5L, handler));
+            assertTrue(dispatcher.publish(memoryQuotaCheck, InfringementEvent.Kind.OFF_HEAP, 7L, 5L, handler));
+            release.countDown();
+            assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        } finally {
+            dispatcher.shutdown();
+        }
+
+        assertEquals(3, events.size());
+        assertEquals(1L, events.get(0).getCount());
+        assertEquals(InfringementEvent.Kind.MEMORY, events.get(1).getKind());
+        assertEquals(2L, events.get(1).getCount());
+        assertEquals(30L, events.get(1).getUsage());
+        assertEquals(InfringementEvent.Kind.OFF_HEAP, events.get(2).getKind());
+        assertEquals(4L, dispatcher.getPublished());
+        assertEquals(1L, dispatcher.getCoalesced());
+        assertEquals(3L, dispatcher.getDelivered());
+    }
+
+    @Test
+    void testDropsWhenFull() throws InterruptedException {
+        final InfringementDispatcher dispatcher = new InfringementDispatcher(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Consumer<InfringementEvent> handler = event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        try {
+            assertTrue(dispatcher.publish(newCheck(), InfringementEvent.Kind.MEMORY, 10L, 5L, handler));
+            assertFalse(dispatcher.publish(newCheck(), InfringementEvent.Kind.MEMORY, 10L, 5L, handler));
+            release.countDown();
+            assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        } finally {
+            dispatcher.shutdown();
+        }
+        assertEquals(1L, dispatcher.getDropped());
+        assertEquals(1L, dispatcher.getDelivered());
+    }
+
+    @Test
+    void testFailingHandler() throws InterruptedException {
+        final InfringementDispatcher dispatcher = new InfringementDispatcher(4);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        try {
+            dispatcher.publish(newCheck(), InfringementEvent.Kind.MEMORY, 10L, 5L, event -> {
+                throw new IllegalStateException("handler failure");
+            });
+            dispatcher.publish(newCheck(), InfringementEvent.Kind.MEMORY, 10L, 5L, event -> delivered.countDown());
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+            assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        } finally {
+            dispatcher.shutdown();
+        }
+        assertEquals(1L, dispatcher.getFailed());
+        assertEquals(1L, dispatcher.getDelivered());
+    }
+
+    @Test
+    void testErrorEndsConsumer() throws InterruptedException {
+        final InfringementDispatcher dispatcher = new InfringementDispatcher(4);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        try {
+            dispatcher.publish(newCheck(), InfringementEvent.Kind.MEMORY, 10L, 5L, event -> {
+                throw new ExceptionInInitializerError("handler error");
+            });
+            dispatcher.publish(newCheck(), InfringementEvent.Kind.MEMORY, 10L, 5L, event -> delivered.countDown());
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+            assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        } finally {
+            dispatcher.shutdown();
+        }
+        assertEquals(0L, dispatcher.getFailed());
+        assertEquals(1L, dispatcher.getDelivered());
+    }
+
+    @Test
+    void testBadCapacity() {
+        assertThrows(IllegalArgumentException.class, () -> new InfringementDispatcher(0));
+    }
+
+    @Test
+    void testThreadDoesNotKeepPublisherLoader() throws Exception {
+        final InfringementDispatcher dispatcher = new InfringementDispatcher(16);
+        final AtomicReference<ClassLoader> contextClassLoader = new AtomicReference<>();
+        final ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        try (URLClassLoader scriptLoader = new URLClassLoader(new URL[0], previous)) {
+            Thread.currentThread().setContextClassLoader(scriptLoader);
+            assertTrue(dispatcher.publish(newCheck(), InfringementEvent.Kind.MEMORY, 10L, 5L,
+                event -> contextClassLoader.set(Thread.currentThread().getContextClassLoader())));
+            assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        } finally {
+            Thread.currentThread().setContextClassLoader(previous);
+            dispatcher.shutdown();
+        }
+        assertSame(InfringementDispatcher.class.getClassLoader(), contextClassLoader.get());
+    }
+
+    @Test
+    void testKeyCachedByChecker() {
+        final MemoryQuotaCheck memoryQuotaCheck = newCheck();
+        assertSame(memoryQuotaCheck.dispatchKey(InfringementEvent.Kind.MEMORY),
+            memoryQuotaCheck.dispatchKey(InfringementEvent.Kind.MEMORY));
+        assertFalse(memoryQuotaCheck.dispatchKey(InfringementEvent.Kind.MEMORY)
+            .equals(memoryQuotaCheck.dispatchKey(InfringementEvent.Kind.OFF_HEAP)));
+    }
+}
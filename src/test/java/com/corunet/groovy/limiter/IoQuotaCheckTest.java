@@ -0,0 +1,67 @@
+package com.corunet.groovy.limiter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.Test;
+
+public class IoQuotaCheckTest {
+
+    @Test
+    void testChargeOverLimit() {
+        AtomicReference<IoQuotaCheck> result = new AtomicReference<>();
+        final IoQuotaCheck ioQuotaCheck = new IoQuotaCheck(1024L);
+        ioQuotaCheck.setHandler(result::set);
+        ioQuotaCheck.chargeRead(1000L);
+        ioQuotaCheck.chargeWrite(24L);
+        assertNull(result.get(), "I/O quota exceeded before reaching the limit");
+        ioQuotaCheck.chargeWrite(1L);
+        assertNotNull(result.get(), "I/O quota not exceeded after reaching the limit");
+        assertEquals(1000L, ioQuotaCheck.getBytesRead());
+        assertEquals(25L, ioQuotaCheck.getBytesWritten());
+        assertEquals(1L, ioQuotaCheck.getReads());
+        assertEquals(2L, ioQuotaCheck.getWrites());
+    }
+
+    @Test
+    void testSetLimitBadLimit() {
+        assertThrows(IllegalArgumentException.class, () -> new IoQuotaCheck(-1L));
+    }
+
+    @Test
+    void testFileReadChargedBeforeReading() throws IOException {
+        final Path file = Files.createTempFile("input", ".bin");
+        Files.write(file, new byte[2048]);
+        final MemoryQuotaCheck memoryQuotaCheck = new MemoryQuotaCheck(
+            (ThreadMXBean) ManagementFactory.getThreadMXBean());
+        final IoQuotaCheck ioQuotaCheck = new IoQuotaCheck(1024L);
+        ioQuotaCheck.setHandler(check -> {
+            throw new IllegalStateException("I/O quota exceeded");
+        });
+        memoryQuotaCheck.setIoQuotaCheck(ioQuotaCheck);
+        memoryQuotaCheck.bind();
+        try {
+            assertThrows(IllegalStateException.class,
+                () -> IoOperations.invoke(file.toFile(), "getBytes", new Object[0]));
+            assertEquals(2048L, ioQuotaCheck.getBytesRead());
+        } finally {
+            memoryQuotaCheck.unbind();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testUnboundPassesThrough() {
+        assertEquals("abc", IoOperations.getProperty(Collections.singletonMap("text", "abc"), "text"));
+        assertEquals(6, IoOperations.leftShift(3, 1));
+    }
+}
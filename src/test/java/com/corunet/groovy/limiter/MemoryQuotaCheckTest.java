@@ -1,15 +1,20 @@
 package com.corunet.groovy.limiter;
 
 import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import com.sun.management.ThreadMXBean;
 import org.junit.jupiter.api.Test;
@@ -62,6 +67,8 @@ public class MemoryQuotaCheckTest {
         memoryQuotaCheck.init();
         assertEquals(threadId, memoryQuotaCheck.getThreadId(), "Unexpected thread ID after init");
         assertNotEquals(0, memoryQuotaCheck.getBaseUsage(), "Unexpected base usage after init");
+        assertEquals(MemoryQuotaCheck.Accounting.THREAD, memoryQuotaCheck.getAccounting());
+        assertEquals(0L, memoryQuotaCheck.getLostWindows());
     }
 
     @Test
@@ -108,6 +115,19 @@ public class MemoryQuotaCheckTest {
         }
     }
 
+    public static class PublicHandler {
+        public static void handle(MemoryQuotaCheck memoryQuotaCheck) {
+            fail();
+        }
+    }
+
+    @Test
+    void testHandlerResolvedOnce() throws NoSuchMethodException {
+        assertSame(
+            MemoryQuotaCheck.methodToConsumer(PublicHandler.class, "handle", MemoryQuotaCheck.class),
+            MemoryQuotaCheck.methodToConsumer(PublicHandler.class, "handle", MemoryQuotaCheck.class));
+    }
+
     @Test
     void testSetHandlerPrivateMethod() {
         final MemoryQuotaCheck memoryQuotaCheck = new MemoryQuotaCheck(
@@ -128,4 +148,84 @@ public class MemoryQuotaCheckTest {
             (ThreadMXBean) ManagementFactory.getThreadMXBean());
         assertThrows(IllegalStateException.class, memoryQuotaCheck::check);
     }
+
+    @Test
+    void testModeOff() {
+        AtomicReference<MemoryQuotaCheck> result = new AtomicReference<>();
+        final MemoryQuotaCheck memoryQuotaCheck = new MemoryQuotaCheck(
+            (ThreadMXBean) ManagementFactory.getThreadMXBean());
+        memoryQuotaCheck.setHandler(result::set);
+        memoryQuotaCheck.setMode(MemoryQuotaCheck.Mode.OFF);
+        memoryQuotaCheck.check();
+        assertNull(result.get(), "Handler invoked with checks off");
+        assertEquals(0L, memoryQuotaCheck.getChecks());
+        assertFalse(memoryQuotaCheck.isEnabled());
+    }
+
+    @Test
+    void testSetEnabledIsStatsOnly() {
+        AtomicReference<MemoryQuotaCheck> result = new AtomicReference<>();
+        final MemoryQuotaCheck memoryQuotaCheck = new MemoryQuotaCheck(
+            (ThreadMXBean) ManagementFactory.getThreadMXBean());
+        memoryQuotaCheck.setHandler(result::set);
+        memoryQuotaCheck.init();
+        memoryQuotaCheck.setEnabled(false);
+        assertEquals(MemoryQuotaCheck.Mode.STATS_ONLY, memoryQuotaCheck.getMode());
+        memoryQuotaCheck.check();
+        assertNull(result.get(), "Handler invoked with checks disabled");
+        assertEquals(1L, memoryQuotaCheck.getChecks());
+        memoryQuotaCheck.setEnabled(true);
+        assertEquals(MemoryQuotaCheck.Mode.FULL, memoryQuotaCheck.getMode());
+    }
+
+    @Test
+    void testChargeOffHeap() {
+        AtomicReference<MemoryQuotaCheck> result = new AtomicReference<>();
+        final MemoryQuotaCheck memoryQuotaCheck = new MemoryQuotaCheck(
+            (ThreadMXBean) ManagementFactory.getThreadMXBean());
+        memoryQuotaCheck.setHandler(result::set);
+        memoryQuotaCheck.setOffHeapLimit(1024L);
+        memoryQuotaCheck.chargeOffHeap(1024L);
+        assertNull(result.get(), "Off-heap quota exceeded before reaching the limit");
+        memoryQuotaCheck.chargeOffHeap(1L);
+        assertNotNull(result.get(), "Off-heap quota not exceeded after reaching the limit");
+        assertEquals(1025L, memoryQuotaCheck.getOffHeapUsage());
+    }
+
+    @Test
+    void testSetOffHeapLimitBadLimit() {
+        final MemoryQuotaCheck memoryQuotaCheck = new MemoryQuotaCheck(
+            (ThreadMXBean) ManagementFactory.getThreadMXBean());
+        assertThrows(IllegalArgumentException.class, () -> memoryQuotaCheck.setOffHeapLimit(-1));
+    }
+
+    @Test
+    void testNestedCheckReadsAllocationOnce() {
+        final ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final AtomicInteger reads = new AtomicInteger();
+        final ThreadMXBean counting = (ThreadMXBean) Proxy.newProxyInstance(
+            ThreadMXBean.class.getClassLoader(), new Class<?>[]{ThreadMXBean.class}, (proxy, method, args) -> {
+                if ("getThreadAllocatedBytes".equals(method.getName()) && args[0] instanceof Long) {
+                    reads.incrementAndGet();
+                }
+                return method.invoke(threadMXBean, args);
+            });
+        final MemoryQuotaCheck outer = new MemoryQuotaCheck(counting);
+        final MemoryQuotaCheck inner = new MemoryQuotaCheck(counting);
+        outer.init();
+        outer.bind();
+        inner.init();
+        inner.bind();
+        try {
+            reads.set(0);
+            inner.check();
+            assertEquals(1, reads.get());
+            assertEquals(1L, inner.getChecks());
+            assertEquals(1L, outer.getChecks());
+            assertTrue(outer.getMaximum() >= inner.getMaximum(), "Outer checker measured less than the inner one");
+        } finally {
+            inner.unbind();
+            outer.unbind();
+        }
+    }
 }
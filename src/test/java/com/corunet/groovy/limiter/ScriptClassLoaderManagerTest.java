@@ -0,0 +1,156 @@
+package com.corunet.groovy.limiter;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import groovy.lang.Binding;
+import groovy.lang.Script;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.MultipleCompilationErrorsException;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.junit.jupiter.api.Test;
+
+public class ScriptClassLoaderManagerTest {
+
+    private static class QuotaInfringementHandler {
+
+        @SuppressWarnings("unused")
+        public static void handle(MemoryQuotaCheck memoryQuotaCheck) {
+            throw new OutOfMemoryError(
+                "Memory quota exceeded, current memory use " + memoryQuotaCheck.getMaximum() + " bytes");
+        }
+    }
+
+    private static CompilerConfiguration guarded() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", 1024 * 1024 * 64L);
+        map.put("handlerClass", QuotaInfringementHandler.class);
+        map.put("handlerMethod", "handle");
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        return compilerConfiguration;
+    }
+
+    private static ScriptClassLoaderManager newManager(int maxUses) {
+        return new ScriptClassLoaderManager(
+            ScriptClassLoaderManagerTest.class.getClassLoader(), guarded(), maxUses, 1, TimeUnit.HOURS);
+    }
+
+    @Test
+    void testRetiresByUses() {
+        final ScriptClassLoaderManager manager = newManager(2);
+        final ScriptClassLoaderManager.Lease first = manager.lease();
+        final ScriptClassLoaderManager.Lease second = manager.lease();
+        final ScriptClassLoaderManager.Lease third = manager.lease();
+        assertSame(first.getClassLoader(), second.getClassLoader());
+        assertNotSame(first.getClassLoader(), third.getClassLoader());
+        assertEquals(2L, manager.getGenerations());
+
+        assertEquals(5, first.parse("def list = [1, 2]\nfor (i in list) { }\nreturn 5", new Binding()).run());
+        assertEquals(1, first.getLoadedClasses());
+        assertEquals(1, manager.getRetired());
+        first.close();
+        first.close();
+        assertEquals(1, manager.getRetired());
+        second.close();
+        assertEquals(0, manager.getRetired());
+        assertEquals(1L, manager.getDisposed());
+        assertEquals(1L, manager.getUnloadedClasses());
+        third.close();
+        assertEquals(1L, manager.getDisposed(), "Current generation disposed");
+    }
+
+    @Test
+    void testRetiresByAge() throws InterruptedException {
+        final ScriptClassLoaderManager manager = new ScriptClassLoaderManager(
+            getClass().getClassLoader(), guarded(), 100, 1, TimeUnit.MILLISECONDS);
+        try (ScriptClassLoaderManager.Lease lease = manager.lease()) {
+            lease.parseClass("return 1");
+        }
+        Thread.sleep(5);
+        manager.lease().close();
+        assertEquals(2L, manager.getGenerations());
+        assertEquals(1L, manager.getDisposed());
+    }
+
+    @Test
+    void testRetiresExpiredWithoutLease() throws InterruptedException {
+        final ScriptClassLoaderManager manager = new ScriptClassLoaderManager(
+            getClass().getClassLoader(), guarded(), 100, 500, TimeUnit.MILLISECONDS);
+        final ScriptClassLoaderManager.Lease lease = manager.lease();
+        manager.retireExpired();
+        assertEquals(1L, manager.getGenerations());
+        assertEquals(0L, manager.getDisposed(), "Young generation retired");
+        Thread.sleep(600);
+        lease.close();
+        assertEquals(1L, manager.getDisposed(), "Expired generation kept after its last lease");
+
+        manager.lease().close();
+        Thread.sleep(600);
+        manager.retireExpired();
+        assertEquals(2L, manager.getDisposed(), "Idle expired generation kept");
+    }
+
+    @Test
+    void testCheckerReportsGeneration() {
+        final ScriptClassLoaderManager manager = newManager(1);
+        final ScriptClassLoaderManager.Lease lease = manager.lease();
+        final Script script = lease.parse("return 1", new Binding());
+        script.run();
+        final MemoryQuotaCheck memoryQuotaCheck =
+            (MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD);
+        assertSame(lease.getGeneration(), memoryQuotaCheck.getGeneration());
+        assertEquals(1, memoryQuotaCheck.getGeneration().getLoadedClasses());
+        assertFalse(memoryQuotaCheck.getGeneration().isDisposed());
+        manager.retire();
+        lease.close();
+        assertTrue(memoryQuotaCheck.getGeneration().isDisposed());
+    }
+
+    @Test
+    void testDisposedClassesAreUnloaded() throws InterruptedException {
+        final ScriptClassLoaderManager manager = newManager(1);
+        final WeakReference<Class<?>> scriptClass = runScript(manager);
+        manager.retire();
+        for (int i = 0; i < 10 && scriptClass.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(scriptClass.get(), "Script class not unloaded");
+    }
+
+    private static WeakReference<Class<?>> runScript(ScriptClassLoaderManager manager) {
+        try (ScriptClassLoaderManager.Lease lease = manager.lease()) {
+            final Script script = lease.parse("def garbage = new byte[1024]\nreturn garbage.length", new Binding());
+            assertEquals(1024, script.run());
+            return new WeakReference<>(script.getClass());
+        }
+    }
+
+    @Test
+    void testLoaderFactory() {
+        final ScriptClassLoaderManager manager = new ScriptClassLoaderManager(
+            getClass().getClassLoader(), guarded(), 1, 1, TimeUnit.HOURS,
+            (parent, config) -> new CompilationQuotaClassLoader(parent, config, 1024L, 1, TimeUnit.HOURS));
+        try (ScriptClassLoaderManager.Lease lease = manager.lease()) {
+            assertTrue(lease.getClassLoader() instanceof CompilationQuotaClassLoader);
+            assertThrows(MultipleCompilationErrorsException.class, () -> lease.parseClass("return 1"));
+        }
+    }
+
+    @Test
+    void testBadLimits() {
+        assertThrows(IllegalArgumentException.class, () -> newManager(0));
+        assertThrows(IllegalArgumentException.class,
+            () -> new ScriptClassLoaderManager(null, guarded(), 1, 0, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,303 @@
+package com.corunet.groovy.limiter.benchmark;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.corunet.groovy.limiter.CheckMemoryQuota;
+import com.corunet.groovy.limiter.MemoryQuotaCheck;
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Replays a corpus of Groovy scripts at a given concurrency and arrival rate, with and without the memory limiter,
+ * and reports throughput, latency percentiles, GC time, check counts and kill counts.
+ *
+ * It runs locally without external services. Launch it with {@code mvn -Pbenchmark test-compile exec:java}, the
+ * following system properties tune it:
+ * <ul>
+ *     <li>{@code benchmark.corpus}: directory holding *.groovy scripts, defaults to the bundled corpus</li>
+ *     <li>{@code benchmark.concurrency}: worker threads, defaults to the available processors</li>
+ *     <li>{@code benchmark.rate}: script arrivals per second, 0 replays back to back (closed loop)</li>
+ *     <li>{@code benchmark.executions}: measured executions per run</li>
+ *     <li>{@code benchmark.warmup}: unmeasured executions before each run</li>
+ *     <li>{@code benchmark.limit}: memory quota in bytes for the limited run</li>
+ * </ul>
+ * With an arrival rate (open loop), latency is measured from the scheduled arrival so queueing delays are not hidden.
+ * Executions failing with anything but a quota kill are counted apart and left out of the latency percentiles.
+ */
+public final class ReplayBenchmark {
+
+    private static final String CORPUS_RESOURCE = "/benchmark-corpus";
+
+    private final List<String> names;
+    private final List<String> sources;
+    private final int concurrency;
+    private final double rate;
+    private final int executions;
+    private final int warmup;
+    private final long limit;
+
+    private ReplayBenchmark(
+        List<String> names, List<String> sources, int concurrency, double rate, int executions, int warmup, long limit
+    ) {
+        this.names = names;
+        this.sources = sources;
+        this.concurrency = concurrency;
+        this.rate = rate;
+        this.executions = executions;
+        this.warmup = warmup;
+        this.limit = limit;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final String corpus = System.getProperty("benchmark.corpus");
+        final List<String> names = new ArrayList<>();
+        final List<String> sources = new ArrayList<>();
+        if (corpus != null) {
+            readCorpus(Paths.get(corpus), names, sources);
+        } else {
+            readBundledCorpus(names, sources);
+        }
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException(
+                "No *.groovy scripts found in " + (corpus != null ? corpus : "the bundled corpus"));
+        }
+
+        final ReplayBenchmark benchmark = new ReplayBenchmark(
+            names,
+            sources,
+            Integer.getInteger("benchmark.concurrency", Runtime.getRuntime().availableProcessors()),
+            Double.parseDouble(System.getProperty("benchmark.rate", "0")),
+            Integer.getInteger("benchmark.executions", 2000),
+            Integer.getInteger("benchmark.warmup", 500),
+            Long.getLong("benchmark.limit", 64L * 1024 * 1024)
+        );
+
+        System.out.printf(Locale.ROOT, "corpus=%s scripts=%d concurrency=%d rate=%s executions=%d warmup=%d%n",
+            corpus != null ? corpus : "bundled", sources.size(), benchmark.concurrency,
+            benchmark.rate > 0 ? benchmark.rate + "/s" : "closed-loop", benchmark.executions, benchmark.warmup);
+        benchmark.run("limiter-off", new CompilerConfiguration()).print();
+        benchmark.run("limiter-on", limitedConfiguration(benchmark.limit)).print();
+    }
+
+    private static void readCorpus(Path corpus, List<String> names, List<String> sources) throws IOException {
+        try (DirectoryStream<Path> scripts = Files.newDirectoryStream(corpus, "*.groovy")) {
+            for (Path script : scripts) {
+                names.add(script.getFileName().toString());
+                sources.add(new String(Files.readAllBytes(script), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Reads the corpus from the test classes directory, or from inside the jar when the benchmark is packaged
+     */
+    private static void readBundledCorpus(List<String> names, List<String> sources)
+        throws IOException, URISyntaxException {
+        final URL url = ReplayBenchmark.class.getResource(CORPUS_RESOURCE);
+        if (url == null) {
+            throw new IllegalStateException("Bundled corpus not found, set benchmark.corpus");
+        }
+        final URI uri = url.toURI();
+        if ("jar".equals(uri.getScheme())) {
+            try (FileSystem jar = FileSystems.newFileSystem(uri, Collections.<String, Object>emptyMap())) {
+                readCorpus(jar.provider().getPath(uri), names, sources);
+            }
+        } else {
+            readCorpus(Paths.get(uri), names, sources);
+        }
+    }
+
+    private static CompilerConfiguration limitedConfiguration(long limit) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("limit", limit);
+        map.put("handlerClass", KillHandler.class);
+        map.put("handlerMethod", "kill");
+        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(map, CheckMemoryQuota.class));
+        return compilerConfiguration;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Result run(String label, CompilerConfiguration configuration) throws InterruptedException {
+        final List<Class<? extends Script>> classes = new ArrayList<>();
+        final GroovyShell shell = new GroovyShell(configuration);
+        for (int i = 0; i < sources.size(); i++) {
+            classes.add((Class<? extends Script>) shell.parse(sources.get(i), scriptName(names.get(i))).getClass());
+        }
+
+        replay(classes, warmup, new long[warmup], new AtomicLong(), new AtomicInteger(), new AtomicInteger());
+
+        final long[] latencies = new long[executions];
+        final AtomicLong checks = new AtomicLong();
+        final AtomicInteger kills = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final long gcBefore = gcMillis();
+        final long start = System.nanoTime();
+        replay(classes, executions, latencies, checks, kills, failures);
+        final long elapsed = System.nanoTime() - start;
+        return new Result(
+            label, latencies, elapsed, gcMillis() - gcBefore, checks.get(), kills.get(), failures.get());
+    }
+
+    /**
+     * Runs the given number of executions picking scripts round robin, storing each latency in nanoseconds. Failed
+     * executions are counted and their latency is stored as -1.
+     */
+    private void replay(
+        List<Class<? extends Script>> classes, int count, long[] latencies, AtomicLong checks, AtomicInteger kills,
+        AtomicInteger failures
+    ) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final boolean openLoop = rate > 0;
+        final long interval = openLoop ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0L;
+        final long origin = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final Class<? extends Script> scriptClass = classes.get(i % classes.size());
+            final long arrival = openLoop ? origin + interval * i : 0L;
+            if (openLoop) {
+                long wait;
+                while ((wait = arrival - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            executor.execute(() -> {
+                final long begin = openLoop ? arrival : System.nanoTime();
+                Script script = null;
+                try {
+                    script = InvokerHelper.createScript(scriptClass, new Binding());
+                    script.run();
+                } catch (Throwable e) {
+                    if (!isKill(e)) {
+                        latencies[index] = -1L;
+                        failures.incrementAndGet();
+                        return;
+                    }
+                    kills.incrementAndGet();
+                }
+                latencies[index] = System.nanoTime() - begin;
+                if (script.getBinding().hasVariable(MemoryQuotaCheck.CHECKER_FIELD)) {
+                    checks.addAndGet(
+                        ((MemoryQuotaCheck) script.getProperty(MemoryQuotaCheck.CHECKER_FIELD)).getChecks());
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    private static boolean isKill(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof Killed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long gcMillis() {
+        long total = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0L, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static String scriptName(String fileName) {
+        return fileName.replaceAll("\\.groovy$", "").replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    /**
+     * Infringement handler used on the limited run, it stops the script as a production handler would
+     */
+    public static final class KillHandler {
+
+        private KillHandler() {
+        }
+
+        @SuppressWarnings("unused")
+        public static void kill(MemoryQuotaCheck memoryQuotaCheck) {
+            throw new Killed();
+        }
+    }
+
+    private static final class Killed extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private Killed() {
+            super("Memory quota exceeded", null, false, false);
+        }
+    }
+
+    private static final class Result {
+
+        private final String label;
+        private final long[] latencies;
+        private final long elapsed;
+        private final long gcMillis;
+        private final long checks;
+        private final int kills;
+        private final int failures;
+
+        private Result(
+            String label, long[] latencies, long elapsed, long gcMillis, long checks, int kills, int failures
+        ) {
+            this.label = label;
+            // failed executions are stored as -1 and have no meaningful latency
+            this.latencies = Arrays.stream(latencies).filter(latency -> latency >= 0L).sorted().toArray();
+            this.elapsed = elapsed;
+            this.gcMillis = gcMillis;
+            this.checks = checks;
+            this.kills = kills;
+            this.failures = failures;
+        }
+
+        private double percentileMillis(double percentile) {
+            if (latencies.length == 0) {
+                return Double.NaN;
+            }
+            final int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, index))] / 1e6;
+        }
+
+        private void print() {
+            System.out.printf(Locale.ROOT,
+                "%-12s throughput=%.1f/s p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms gc=%dms "
+                    + "checks=%d kills=%d failures=%d%n",
+                label,
+                latencies.length / (elapsed / 1e9),
+                percentileMillis(50), percentileMillis(90), percentileMillis(99), percentileMillis(99.9),
+                percentileMillis(100),
+                gcMillis, checks, kills, failures);
+        }
+    }
+}
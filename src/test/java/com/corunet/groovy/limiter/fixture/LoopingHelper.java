@@ -0,0 +1,26 @@
+package com.corunet.groovy.limiter.fixture;
+
+/**
+ * Stands for a precompiled helper library called from guarded scripts
+ */
+public final class LoopingHelper {
+
+    private LoopingHelper() {
+    }
+
+    public static long sum(int count) {
+        long total = 0L;
+        for (int i = 0; i < count; i++) {
+            total += i;
+        }
+        return total;
+    }
+
+    public static int allocate(int megabytes) {
+        int total = 0;
+        for (int i = 0; i < megabytes; i++) {
+            total += new byte[1024 * 1024].length;
+        }
+        return total;
+    }
+}
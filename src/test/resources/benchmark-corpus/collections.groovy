@@ -0,0 +1,6 @@
+// Filters, maps and groups a list of records
+def records = (1..5000).collect { [id: it, group: it % 17, amount: it * 3 % 101] }
+def totals = records.findAll { it.amount > 10 }
+    .groupBy { it.group }
+    .collectEntries { k, v -> [k, v.sum { it.amount }] }
+return totals.size()
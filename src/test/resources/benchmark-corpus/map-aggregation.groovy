@@ -0,0 +1,9 @@
+// Word counting over a generated text
+def words = ['alpha', 'beta', 'gamma', 'delta', 'epsilon', 'zeta', 'eta', 'theta']
+def counts = [:].withDefault { 0 }
+int i = 0
+while (i < 20000) {
+    counts[words[(i * 7) % words.size()]] += 1
+    i += 1
+}
+return counts.values().sum()
@@ -0,0 +1,9 @@
+// Keeps allocating, the limiter is expected to kill it
+def chunks = []
+for (int i = 0; i < 128; i++) {
+    chunks << new byte[1024 * 1024]
+    if (chunks.size() > 16) {
+        chunks.remove(0)
+    }
+}
+return chunks.size()
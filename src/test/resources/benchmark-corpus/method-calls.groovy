@@ -0,0 +1,8 @@
+// Recursive and helper method calls with little allocation
+def fib(int n) { n < 2 ? n : fib(n - 1) + fib(n - 2) }
+def clamp(x, lo, hi) { Math.max(lo, Math.min(hi, x)) }
+def total = 0
+for (int i = 0; i < 200; i++) {
+    total += clamp(fib(i % 15), 0, 300)
+}
+return total
@@ -0,0 +1,6 @@
+// Tight numeric loop, mostly checks and no allocation
+long acc = 0
+for (int i = 0; i < 100000; i++) {
+    acc = (acc * 31 + i) % 1000003
+}
+return acc
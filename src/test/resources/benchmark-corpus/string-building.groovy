@@ -0,0 +1,6 @@
+// Builds a report line by line, typical of templating scripts
+def sb = new StringBuilder()
+for (int i = 0; i < 2000; i++) {
+    sb.append("line ").append(i).append(': ').append("value-${i * 31 % 97}").append('\n')
+}
+return sb.length()